@@ -1,5 +1,8 @@
 package ru.maximalexeev.bot;
 
+import ru.maximalexeev.bot.db.DbProfile;
+import ru.maximalexeev.bot.dispatch.ExecutionMode;
+
 import java.math.BigDecimal;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -13,6 +16,20 @@ public record AppConfig(
         Set<Long> adminIds,
         String dbPath,
         Path mediaDir,
+        // куда при старте заливать медиа ради file_id (по умолчанию — первый админ); null — прогрева нет.
+        // Прогрев идет в фоне, апдейты принимаются сразу: пока он не дошел до файла, первый получатель
+        // ждет его загрузку (одну на всех одновременных); без прогрева так — с каждым файлом после деплоя
+        Long mediaStorageChatId,
+        int mediaWarmupConcurrency,
+
+        // SQLite: профиль PRAGMA, число соединений-читателей, групповой коммит писателя
+        DbProfile dbProfile,
+        int dbReaders,
+        int dbWriteGroupMax,
+        long dbWriteGroupWindowMs,
+
+        // сколько строк users держать в памяти
+        int userCacheSize,
 
         // media names
         String pdfRisk,
@@ -21,6 +38,8 @@ public record AppConfig(
 
         // audio bundle (5 files)
         List<String> audioFiles,
+        // WAV из комплекта выдаются MP3 с этим битрейтом (кбит/с); 0 — отправлять исходники как есть
+        int audioMp3Kbps,
 
         // Telegram Payments (YooKassa provider via BotFather)
         String yooProviderToken,
@@ -35,7 +54,32 @@ public record AppConfig(
 
         // deep links
         String startParamAudio,
-        String startParamSystem
+        String startParamSystem,
+
+        // обработка апдейтов: платформенные или виртуальные потоки, число полос (параллельных чатов)
+        ExecutionMode executionMode,
+        int updateWorkers,
+
+        // сколько исходящих отправок одновременно в рассылках и кампаниях
+        int sendConcurrency,
+
+        // сколько оплаченных выдач (загрузка аудио) идет одновременно
+        int deliveryConcurrency,
+
+        // лимиты Bot API для исходящих: сообщений в секунду всего (потолок адаптивной скорости) и на один чат
+        double outboundRate,
+        double outboundChatRate,
+        // одновременных запросов к Bot API (у HTTP-клиента telegrambots 2 соединения на маршрут)
+        // и сколько из них недоступно рассылкам/кампаниям — держится для оплаты и ответов пользователям
+        int outboundConnections,
+        int outboundReserved,
+
+        // получение апдейтов: long polling (по умолчанию) или встроенный webhook-сервер
+        boolean webhookMode,
+        String webhookUrl,
+        int webhookPort,
+        String webhookPath,
+        String webhookSecret
 ) {
     public static AppConfig fromEnv() {
         String token = require("BOT_TOKEN");
@@ -50,6 +94,16 @@ public record AppConfig(
 
         String dbPath = env("DB_PATH", "/app/data/bot.db");
         Path mediaDir = Path.of(env("MEDIA_DIR", "/app/media"));
+        String storageRaw = env("MEDIA_STORAGE_CHAT_ID", "").trim();
+        Long mediaStorageChatId = !storageRaw.isBlank()
+                ? Long.valueOf(storageRaw)
+                : Arrays.stream(adminsRaw.split(",")).map(String::trim).filter(s -> !s.isBlank()).findFirst().map(Long::parseLong).orElse(null);
+        int mediaWarmupConcurrency = Integer.parseInt(env("MEDIA_WARMUP_CONCURRENCY", "3"));
+        DbProfile dbProfile = DbProfile.parse(env("DB_PROFILE", "balanced"));
+        int dbReaders = Integer.parseInt(env("DB_READERS", "4"));
+        int dbWriteGroupMax = Integer.parseInt(env("DB_WRITE_GROUP_MAX", "64"));
+        long dbWriteGroupWindowMs = Long.parseLong(env("DB_WRITE_GROUP_WINDOW_MS", "2"));
+        int userCacheSize = Integer.parseInt(env("USER_CACHE_SIZE", "100000"));
 
         String pdfRisk = env("PDF_RISK", "Холодная война.pdf");
         String pdfNeighbors = env("PDF_NEIGHBORS", "Как перестать быть соседями.pdf");
@@ -61,6 +115,7 @@ public record AppConfig(
                 .map(String::trim)
                 .filter(s -> !s.isBlank())
                 .collect(Collectors.toList());
+        int audioMp3Kbps = Integer.parseInt(env("AUDIO_MP3_KBPS", "128"));
 
         BigDecimal audioPrice = new BigDecimal(env("AUDIO_PRICE_RUB", "490.00"));
         BigDecimal systemPrice = new BigDecimal(env("SYSTEM_PRICE_RUB", "1990.00"));
@@ -73,16 +128,45 @@ public record AppConfig(
         String materialsUrl = env("SYSTEM_MATERIALS_URL", "https://sistema-soyuzniki-tx3upgy.gamma.site/");
         String systemOfferUrl = env("SYSTEM_OFFER_URL", "https://competent-dog-i4vhuv0.gamma.site/");
 
+        ExecutionMode executionMode = ExecutionMode.parse(env("THREAD_MODE", "platform"));
+        // виртуальная полоса почти бесплатна, поэтому в VIRTUAL их по умолчанию сильно больше
+        int defaultWorkers = (executionMode == ExecutionMode.VIRTUAL)
+                ? 256
+                : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int updateWorkers = Integer.parseInt(env("UPDATE_WORKERS", String.valueOf(defaultWorkers)));
+        int sendConcurrency = Integer.parseInt(env("SEND_CONCURRENCY", "16"));
+        int deliveryConcurrency = Integer.parseInt(env("DELIVERY_CONCURRENCY", "2"));
+        double outboundRate = Double.parseDouble(env("OUTBOUND_RATE", "30"));
+        double outboundChatRate = Double.parseDouble(env("OUTBOUND_CHAT_RATE", "1"));
+        int outboundConnections = Integer.parseInt(env("OUTBOUND_CONNECTIONS", "2"));
+        int outboundReserved = Integer.parseInt(env("OUTBOUND_RESERVED", "1"));
+
+        boolean webhookMode = env("UPDATES_MODE", "polling").trim().equalsIgnoreCase("webhook");
+        // публичный https-адрес без пути; пусто — вебхук у Telegram не регистрируем (локальная отладка)
+        String webhookUrl = env("WEBHOOK_URL", "").trim();
+        int webhookPort = Integer.parseInt(env("WEBHOOK_PORT", "8080"));
+        String webhookPath = env("WEBHOOK_PATH", "/telegram/webhook");
+        String webhookSecret = env("WEBHOOK_SECRET", "");
+
         return new AppConfig(
                 token, username, admins,
-                dbPath, mediaDir,
+                dbPath, mediaDir, mediaStorageChatId, mediaWarmupConcurrency,
+                dbProfile, dbReaders, dbWriteGroupMax, dbWriteGroupWindowMs,
+                userCacheSize,
                 pdfRisk, pdfNeighbors, pdfAllies,
-                audioFiles,
+                audioFiles, audioMp3Kbps,
                 providerToken, audioPrice, systemPrice,
                 materialsUrl,
                 systemOfferUrl,
                 startParamAudio,
-                startParamSystem
+                startParamSystem,
+                executionMode,
+                updateWorkers,
+                sendConcurrency,
+                deliveryConcurrency,
+                outboundRate, outboundChatRate,
+                outboundConnections, outboundReserved,
+                webhookMode, webhookUrl, webhookPort, webhookPath, webhookSecret
         );
     }
 
@@ -94,6 +178,12 @@ public record AppConfig(
         return yooProviderToken != null && !yooProviderToken.isBlank();
     }
 
+    public String webhookFullUrl() {
+        if (webhookUrl == null || webhookUrl.isBlank()) return null;
+        String base = webhookUrl.endsWith("/") ? webhookUrl.substring(0, webhookUrl.length() - 1) : webhookUrl;
+        return base + webhookPath;
+    }
+
     public String audioDeepLink() {
         return "https://t.me/" + botUsername + "?start=" + startParamAudio;
     }
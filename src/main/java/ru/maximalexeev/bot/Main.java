@@ -1,29 +1,87 @@
 package ru.maximalexeev.bot;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
+import ru.maximalexeev.bot.db.BroadcastRepository;
+import ru.maximalexeev.bot.db.CampaignStateRepository;
 import ru.maximalexeev.bot.db.Database;
+import ru.maximalexeev.bot.db.DeliveryRepository;
 import ru.maximalexeev.bot.db.MediaCacheRepository;
+import ru.maximalexeev.bot.db.OutboxRepository;
 import ru.maximalexeev.bot.db.PaymentRepository;
 import ru.maximalexeev.bot.db.UserRepository;
+import ru.maximalexeev.bot.dispatch.WebhookServer;
 
 public class Main {
+    private static final Logger log = LoggerFactory.getLogger(Main.class);
+
     public static void main(String[] args) throws Exception {
         AppConfig config = AppConfig.fromEnv();
 
-        Database db = new Database(config.dbPath());
+        Database db = new Database(
+                config.dbPath(),
+                config.dbProfile(),
+                config.dbReaders(),
+                config.dbWriteGroupMax(),
+                config.dbWriteGroupWindowMs()
+        );
         db.migrate();
 
-        UserRepository userRepo = new UserRepository(db);
+        UserRepository userRepo = new UserRepository(db, config.userCacheSize());
         PaymentRepository paymentRepo = new PaymentRepository(db);
         MediaCacheRepository mediaCacheRepo = new MediaCacheRepository(db);
+        CampaignStateRepository campaignStateRepo = new CampaignStateRepository(db);
+        BroadcastRepository broadcastRepo = new BroadcastRepository(db);
+        OutboxRepository outboxRepo = new OutboxRepository(db);
+        DeliveryRepository deliveryRepo = new DeliveryRepository(db);
 
         // YooKassaClient/PaymentWatcher больше не нужны для Telegram Invoice
-        MaximTestBot bot = new MaximTestBot(config, userRepo, paymentRepo, mediaCacheRepo);
+        MaximTestBot bot = new MaximTestBot(config, db, userRepo, paymentRepo, mediaCacheRepo, campaignStateRepo, broadcastRepo, outboxRepo, deliveryRepo);
+
+        bot.start();
+
+        // прогрев в фоне, апдейты принимаем сразу: файл, который еще не залит, уйдет прямой загрузкой
+        // (ограничение описано у AppConfig.mediaStorageChatId)
+        bot.warmUpMedia();
+
+        if (config.webhookMode()) {
+            WebhookServer server = new WebhookServer(
+                    config.webhookPort(),
+                    config.webhookPath(),
+                    config.webhookSecret(),
+                    config.executionMode().newTaskExecutor("webhook-", 4),
+                    bot::onUpdateReceived
+            );
+            bot.attachWebhook(server);
+            server.start();
+
+            String url = config.webhookFullUrl();
+            if (url != null) {
+                SetWebhook sw = new SetWebhook(url);
+                if (!config.webhookSecret().isBlank()) sw.setSecretToken(config.webhookSecret());
+                bot.execute(sw);
+                log.info("Webhook registered: {}", url);
+            } else {
+                log.warn("WEBHOOK_URL is empty: webhook is not registered in Telegram (local mode)");
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                bot.shutdown();
+                db.close();
+            }));
+            return;
+        }
 
         TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
         botsApi.registerBot(bot);
 
-        Runtime.getRuntime().addShutdownHook(new Thread(bot::shutdown));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            bot.shutdown();
+            db.close();
+        }));
     }
-}
\ No newline at end of file
+}
@@ -8,6 +8,7 @@ import org.telegram.telegrambots.meta.api.methods.AnswerPreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.methods.ParseMode;
 import org.telegram.telegrambots.meta.api.methods.commands.SetMyCommands;
 import org.telegram.telegrambots.meta.api.methods.invoices.SendInvoice;
+import org.telegram.telegrambots.meta.api.methods.send.SendAudio;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
@@ -22,22 +23,51 @@ import org.telegram.telegrambots.meta.api.objects.payments.PreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import ru.maximalexeev.bot.campaign.BroadcastRunner;
+import ru.maximalexeev.bot.campaign.FollowupEngine;
+import ru.maximalexeev.bot.campaign.FollowupRule;
+import ru.maximalexeev.bot.db.BroadcastRepository;
+import ru.maximalexeev.bot.db.DeliveryRepository;
+import ru.maximalexeev.bot.db.OutboxRepository;
+import ru.maximalexeev.bot.db.Segment;
+import ru.maximalexeev.bot.db.CampaignStateRepository;
+import ru.maximalexeev.bot.db.Database;
 import ru.maximalexeev.bot.db.MediaCacheRepository;
 import ru.maximalexeev.bot.db.PaymentRepository;
 import ru.maximalexeev.bot.db.UserRepository;
 import ru.maximalexeev.bot.db.models.PaymentStatus;
 import ru.maximalexeev.bot.db.models.QuizResult;
 import ru.maximalexeev.bot.db.models.UserState;
+import ru.maximalexeev.bot.dispatch.DeliveryWorker;
+import ru.maximalexeev.bot.dispatch.OutboundSender;
+import ru.maximalexeev.bot.dispatch.OutboxDispatcher;
+import ru.maximalexeev.bot.dispatch.UpdateDispatcher;
+import ru.maximalexeev.bot.dispatch.WebhookServer;
+import ru.maximalexeev.bot.media.AudioDerivatives;
+import ru.maximalexeev.bot.media.MediaCatalog;
+import ru.maximalexeev.bot.media.MediaFileIds;
+import ru.maximalexeev.bot.media.MediaKind;
+import ru.maximalexeev.bot.media.MediaWarmup;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MaximTestBot extends TelegramLongPollingBot {
+public final class MaximTestBot extends TelegramLongPollingBot {
     private static final Logger log = LoggerFactory.getLogger(MaximTestBot.class);
 
     private static final long UPSELL_15M_MS = 15L * 60L * 1000L;
@@ -50,33 +80,164 @@ public class MaximTestBot extends TelegramLongPollingBot {
     private static final String PAYLOAD_AUDIO_PREFIX = "audio_guide:";
     private static final String PAYLOAD_SYSTEM_PREFIX = "system_course:";
 
+    // правила отложенных сообщений (id хранятся в campaign_state — не переименовывать)
+    private static final String RULE_SYSTEM_OFFER_5M = "system_offer_5m";
+    private static final String RULE_SYSTEM_INVOICE_5M = "system_invoice_5m";
+    private static final String RULE_FOLLOWUP_AUDIO_24H = "followup_audio_24h";
+    private static final String RULE_FOLLOWUP_SYSTEM_24H = "followup_system_24h";
+
+    private static final long FOLLOWUP_TICK_MS = 1000L;
+    private static final long OUTBOX_TICK_MS = 1000L;
+
+    // виды сообщений outbox, кроме правил кампаний (не переименовывать — хранятся в outbox.kind)
+    private static final String OUTBOX_SYSTEM_ACCESS = "system_access";
+
     private final AppConfig config;
+    private final Database db;
     private final UserRepository userRepo;
     private final PaymentRepository paymentRepo;
-    private final MediaCacheRepository mediaCacheRepo;
+    private final MediaFileIds mediaFileIds;
+    private final BroadcastRepository broadcastRepo;
+    private final OutboxRepository outboxRepo;
+    private final DeliveryRepository deliveryRepo;
+    private final MediaCatalog mediaCatalog;
+    private final AudioDerivatives audioDerivatives;
 
     private final ScheduledExecutorService scheduler;
+    private final UpdateDispatcher dispatcher;
+    private final ExecutorService sendExecutor;
+    private final OutboundSender outbound;
+    private final OutboxDispatcher outbox;
+    private final FollowupEngine followups;
+    private final ExecutorService broadcastExecutor;
+    private final BroadcastRunner broadcasts;
+    private final ExecutorService deliveryExecutor;
+    private final DeliveryWorker audioDeliveries;
+    // в режиме webhook сервер создается в Main после бота; null — long polling
+    private volatile WebhookServer webhook;
+    // сегмент, который админ собирает перед рассылкой (admin chat_id -> черновик)
+    private final Map<Long, Segment> broadcastDrafts = new ConcurrentHashMap<>();
 
     public MaximTestBot(AppConfig config,
+                        Database db,
                         UserRepository userRepo,
                         PaymentRepository paymentRepo,
-                        MediaCacheRepository mediaCacheRepo) {
+                        MediaCacheRepository mediaCacheRepo,
+                        CampaignStateRepository campaignStateRepo,
+                        BroadcastRepository broadcastRepo,
+                        OutboxRepository outboxRepo,
+                        DeliveryRepository deliveryRepo) {
         super(config.botToken());
         this.config = config;
+        this.db = db;
         this.userRepo = userRepo;
         this.paymentRepo = paymentRepo;
-        this.mediaCacheRepo = mediaCacheRepo;
+        // file_id медиа — из памяти; первая загрузка каждого файла одна на всех одновременных отправок
+        this.mediaFileIds = new MediaFileIds(mediaCacheRepo);
+        this.broadcastRepo = broadcastRepo;
+        this.outboxRepo = outboxRepo;
+        this.deliveryRepo = deliveryRepo;
 
         this.scheduler = Executors.newScheduledThreadPool(2);
+        this.dispatcher = new UpdateDispatcher(
+                config.updateWorkers(),
+                config.executionMode().threadFactory("update-lane-")
+        );
+        this.sendExecutor = config.executionMode().newTaskExecutor("send-", config.sendConcurrency());
+        // все исходящие — через общий лимитер с полосами приоритета: ответ на pre-checkout не ждет рассылку
+        this.outbound = new OutboundSender(config.outboundRate(), config.outboundChatRate(),
+                config.outboundConnections(), config.outboundReserved());
+
+        // каталог медиа (хэши содержимого) нужен до возобновления выдач; изменения папки подхватываются
+        // на лету после start()
+        this.mediaCatalog = new MediaCatalog(config.mediaDir());
+        this.audioDerivatives = new AudioDerivatives(config.mediaDir(), config.audioMp3Kbps());
+        try {
+            mediaCatalog.scan();
+        } catch (Exception e) {
+            log.error("media catalog init failed: {}", e.toString(), e);
+        }
+
+        // открытые инвойсы — в память, чтобы pre-checkout отвечался без SQLite
+        try {
+            log.info("open invoices loaded: {}", paymentRepo.loadOpenInvoices());
+        } catch (Exception e) {
+            log.error("open invoices load failed: {}", e.toString(), e);
+        }
+
+        // сообщения, записанные вместе с изменением состояния: отправка с повторами и backoff
+        this.outbox = new OutboxDispatcher(outboxRepo, userRepo, sendExecutor, config.sendConcurrency());
+        outbox.register(OUTBOX_SYSTEM_ACCESS, this::sendSystemAccessIfPending, this::onSystemAccessSent);
+
+        // отложенные сообщения кампаний: состояние в campaign_state (устойчиво к перезапуску),
+        // планируются в момент событий; БД трогаем только когда ближайший срок наступил
+        this.followups = new FollowupEngine(followupRules(), campaignStateRepo, userRepo, outbox);
+
+        // выдача оплаченного аудио — отдельный воркер со своим лимитом; прерванные продолжаем с их шага
+        this.deliveryExecutor = config.executionMode().newTaskExecutor("delivery-", config.deliveryConcurrency());
+        this.audioDeliveries = new DeliveryWorker(deliveryRepo, userRepo,
+                List.of(this::sendAudioPaidIntro, this::sendAudioBundle),
+                this::onAudioDeliveryFailed,
+                deliveryExecutor, config.deliveryConcurrency());
+
+        // рассылки — фоновые задания; незавершенные продолжаем с сохраненного курсора
+        this.broadcastExecutor = config.executionMode().newTaskExecutor("broadcast-", 2);
+        this.broadcasts = new BroadcastRunner(broadcastRepo, userRepo, new BroadcastTransport(), broadcastExecutor);
+    }
+
+    // Запуск после конструктора (из Main, до приема апдейтов): все, что зовет методы бота из своих потоков —
+    // слежение за папкой медиа, кампании, outbox, возобновление выдач и рассылок.
+    public void start() {
+        try {
+            mediaCatalog.watch(config.executionMode().threadFactory("media-watch-"), this::onMediaChanged);
+        } catch (Exception e) {
+            log.error("media catalog watch failed to start: {}", e.toString(), e);
+        }
 
-        // периодические кампании (устойчиво к перезапуску — по timestamps в БД)
-        this.scheduler.scheduleAtFixedRate(() -> {
+        try {
+            followups.start();
+        } catch (Exception e) {
+            log.error("followups start failed: {}", e.toString(), e);
+        }
+        if (config.paymentsEnabled()) {
+            try {
+                startFollowups();
+            } catch (Exception e) {
+                log.error("startFollowups failed: {}", e.toString(), e);
+            }
+            this.scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    followups.tick(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.warn("processFollowupsTick failed: {}", e.toString());
+                }
+            }, FOLLOWUP_TICK_MS, FOLLOWUP_TICK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            outbox.start();
+        } catch (Exception e) {
+            log.error("outbox start failed: {}", e.toString(), e);
+        }
+        this.scheduler.scheduleWithFixedDelay(() -> {
             try {
-                processCampaignsTick();
+                outbox.tick(System.currentTimeMillis());
             } catch (Exception e) {
-                log.warn("processCampaignsTick failed: {}", e.toString());
+                log.warn("outbox tick failed: {}", e.toString());
             }
-        }, 10, 60, TimeUnit.SECONDS);
+        }, OUTBOX_TICK_MS, OUTBOX_TICK_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            audioDeliveries.resumeAll();
+        } catch (Exception e) {
+            log.error("delivery resume failed: {}", e.toString(), e);
+        }
+
+        try {
+            broadcasts.resumeAll();
+        } catch (Exception e) {
+            log.error("broadcast resume failed: {}", e.toString(), e);
+        }
 
         try {
             execute(new SetMyCommands(List.of(
@@ -91,12 +252,141 @@ public class MaximTestBot extends TelegramLongPollingBot {
         return config.botUsername();
     }
 
+    public void attachWebhook(WebhookServer server) {
+        this.webhook = server;
+    }
+
+    // Прогрев media_cache (в фоне, Main его не ждет): медиа без file_id заливаются
+    // в служебный чат, чтобы пользователи не ждали загрузку.
+    public CompletableFuture<MediaWarmup.Result> warmUpMedia() {
+        return runWarmup(mediaCatalog.entries());
+    }
+
+    // новый или замененный файл в MEDIA_DIR: у нового содержимого другой ключ, заливаем его заранее
+    private void onMediaChanged(MediaCatalog.Entry entry) {
+        runWarmup(List.of(entry));
+    }
+
+    private CompletableFuture<MediaWarmup.Result> runWarmup(List<MediaCatalog.Entry> files) {
+        Long storageChatId = config.mediaStorageChatId();
+        CompletableFuture<MediaWarmup.Result> result = new CompletableFuture<>();
+        config.executionMode().threadFactory("media-warmup-").newThread(() -> {
+            long t0 = System.currentTimeMillis();
+            try {
+                // заливаем то, что получат пользователи: сжатые копии WAV (кодируются здесь же, параллельно)
+                List<MediaCatalog.Entry> delivered = files.parallelStream().map(audioDerivatives::forDelivery).toList();
+                if (storageChatId == null) {
+                    log.warn("media warm-up skipped: neither MEDIA_STORAGE_CHAT_ID nor ADMIN_IDS set");
+                    result.complete(new MediaWarmup.Result(0, 0, 0));
+                    return;
+                }
+                MediaWarmup warmup = new MediaWarmup(mediaCatalog, mediaFileIds,
+                        (file, kind) -> outbound.inLane(OutboundSender.Lane.CAMPAIGN, () -> uploadToStorage(storageChatId, file, kind)),
+                        sendExecutor, config.mediaWarmupConcurrency());
+                MediaWarmup.Result r = warmup.run(delivered);
+                log.info("media warm-up: {} cached, {} uploaded, {} failed in {} ms",
+                        r.cached(), r.uploaded(), r.failed(), System.currentTimeMillis() - t0);
+                result.complete(r);
+            } catch (Exception e) {
+                log.error("media warm-up failed: {}", e.toString(), e);
+                result.completeExceptionally(e);
+            }
+        }).start();
+        return result;
+    }
+
+    private String uploadToStorage(long storageChatId, Path file, MediaKind kind) throws TelegramApiException {
+        String name = file.getFileName().toString();
+        return switch (kind) {
+            case AUDIO -> {
+                SendAudio sa = new SendAudio();
+                sa.setChatId(storageChatId);
+                sa.setAudio(new InputFile(file.toFile(), name));
+                sa.setDisableNotification(true);
+                Message m = outbound.call(storageChatId, () -> execute(sa));
+                yield m != null && m.getAudio() != null ? m.getAudio().getFileId() : null;
+            }
+            case PDF -> {
+                SendDocument sd = new SendDocument();
+                sd.setChatId(storageChatId);
+                sd.setDocument(new InputFile(file.toFile(), name));
+                sd.setDisableNotification(true);
+                Message m = outbound.call(storageChatId, () -> execute(sd));
+                yield m != null && m.getDocument() != null ? m.getDocument().getFileId() : null;
+            }
+        };
+    }
+
     public void shutdown() {
         try { scheduler.shutdownNow(); } catch (Exception ignored) {}
+        try { mediaCatalog.close(); } catch (Exception ignored) {}
+        try { dispatcher.shutdown(5_000); } catch (Exception ignored) {}
+        try { broadcastExecutor.shutdownNow(); } catch (Exception ignored) {}
+        try { deliveryExecutor.shutdownNow(); } catch (Exception ignored) {}
+        try { sendExecutor.shutdownNow(); } catch (Exception ignored) {}
     }
 
     @Override
     public void onUpdateReceived(Update update) {
+        // апдейты одного чата — строго по порядку, разные чаты — параллельно
+        dispatcher.submit(UpdateDispatcher.chatIdOf(update), () -> handleUpdate(update, false));
+    }
+
+    // Пачка из long polling: группируем по чату, каждую группу обрабатываем в своей полосе;
+    // профиль пользователя пишем один раз на группу (последний из пачки).
+    // Записи разных чатов и полос склеиваются в общие транзакции писателя (групповой коммит). Записи одной
+    // группы идут по очереди: следующий апдейт читает результат предыдущего, а одна транзакция на группу
+    // держалась бы открытой через вызовы Telegram.
+    @Override
+    public void onUpdatesReceived(List<Update> updates) {
+        Map<Long, List<Update>> byChat = new LinkedHashMap<>();
+        for (Update u : updates) {
+            byChat.computeIfAbsent(UpdateDispatcher.chatIdOf(u), k -> new ArrayList<>()).add(u);
+        }
+
+        for (var e : byChat.entrySet()) {
+            long chatId = e.getKey();
+            List<Update> group = e.getValue();
+            if (group.size() == 1) {
+                onUpdateReceived(group.get(0));
+                continue;
+            }
+            dispatcher.submit(chatId, () -> handleBatch(chatId, group));
+        }
+    }
+
+    private void handleBatch(long chatId, List<Update> group) {
+        try {
+            User latest = null;
+            for (Update u : group) {
+                User from = senderOf(u);
+                if (from != null) latest = from;
+            }
+            boolean profileSaved = false;
+            if (latest != null && chatId != 0) {
+                userRepo.upsertUser(chatId, latest);
+                profileSaved = true;
+            }
+            for (Update u : group) handleUpdate(u, profileSaved);
+        } catch (Exception e) {
+            log.error("Batch handling failed for chat {}: {}", chatId, e.toString(), e);
+        }
+    }
+
+    private static User senderOf(Update u) {
+        if (u.hasMessage()) return u.getMessage().getFrom();
+        if (u.hasCallbackQuery()) return u.getCallbackQuery().getFrom();
+        return null;
+    }
+
+    // upsert профиля, если его еще не записали для этой пачки
+    private void touchUser(long chatId, User tgUser, boolean profileSaved) throws Exception {
+        if (profileSaved) return;
+        userRepo.upsertUser(chatId, tgUser);
+    }
+
+    // profileSaved — профиль отправителя уже записан для всей пачки (handleBatch)
+    private void handleUpdate(Update update, boolean profileSaved) {
         try {
             if (update.hasPreCheckoutQuery()) {
                 onPreCheckout(update.getPreCheckoutQuery());
@@ -104,24 +394,42 @@ public class MaximTestBot extends TelegramLongPollingBot {
             }
 
             if (update.hasCallbackQuery()) {
-                onCallback(update.getCallbackQuery());
+                onCallback(update.getCallbackQuery(), profileSaved);
                 return;
             }
 
             if (update.hasMessage()) {
-                onMessage(update.getMessage());
+                onMessage(update.getMessage(), profileSaved);
+                return;
+            }
+
+            if (update.hasMyChatMember()) {
+                onMyChatMember(update.getMyChatMember(), profileSaved);
             }
         } catch (Exception e) {
             log.error("Update handling failed: {}", e.toString(), e);
         }
     }
 
-    private void onMessage(Message msg) throws Exception {
+    // Пользователь заблокировал бота ("kicked") — помечаем сразу, не дожидаясь 403 от рассылки;
+    // разблокировал — запись профиля снимает отметку.
+    private void onMyChatMember(ChatMemberUpdated upd, boolean profileSaved) throws Exception {
+        if (upd.getChat() == null || !"private".equals(upd.getChat().getType()) || upd.getNewChatMember() == null) return;
+        long chatId = upd.getChat().getId();
+        String status = upd.getNewChatMember().getStatus();
+        if ("kicked".equals(status)) {
+            userRepo.markBlocked(new long[]{chatId});
+        } else if ("member".equals(status) && upd.getFrom() != null) {
+            touchUser(chatId, upd.getFrom(), profileSaved);
+        }
+    }
+
+    private void onMessage(Message msg, boolean profileSaved) throws Exception {
         long chatId = msg.getChatId();
         User tgUser = msg.getFrom();
         if (tgUser == null) return;
 
-        userRepo.upsertUser(chatId, tgUser);
+        touchUser(chatId, tgUser, profileSaved);
         UserRepository.UserRow u = userRepo.get(chatId);
 
         if (msg.getSuccessfulPayment() != null) {
@@ -153,12 +461,12 @@ public class MaximTestBot extends TelegramLongPollingBot {
                     return;
                 }
                 // на всякий случай: если ранее был запланирован авто-инвойс после оффера — отключаем
-                userRepo.markSystemInvoice5mSentNow(chatId);
+                followups.suppress(chatId, RULE_SYSTEM_INVOICE_5M);
                 sendSystemInvoice(chatId);
                 return;
             }
 
-            userRepo.resetForStart(chatId);
+            userRepo.resetForStart(chatId, followups.rulesOf(FollowupEngine.QUIZ_FINISHED));
             sendWelcome(chatId);
             return;
         }
@@ -182,7 +490,9 @@ public class MaximTestBot extends TelegramLongPollingBot {
                 userRepo.setState(chatId, UserState.IDLE);
                 return;
             }
-            doBroadcast(chatId, text);
+            Segment segment = broadcastDrafts.getOrDefault(chatId, Segment.ALL);
+            broadcasts.start(chatId, text, segment);
+            broadcastDrafts.remove(chatId);
             userRepo.setState(chatId, UserState.ADMIN_MENU);
             sendAdminMenu(chatId);
             return;
@@ -197,19 +507,19 @@ public class MaximTestBot extends TelegramLongPollingBot {
         return parts[1].trim();
     }
 
-    private void onCallback(CallbackQuery cq) throws Exception {
+    private void onCallback(CallbackQuery cq, boolean profileSaved) throws Exception {
         String data = cq.getData();
         long chatId = cq.getMessage().getChatId();
         long userId = cq.getFrom().getId();
 
-        userRepo.upsertUser(chatId, cq.getFrom());
+        touchUser(chatId, cq.getFrom(), profileSaved);
         UserRepository.UserRow u = userRepo.get(chatId);
 
         if (data == null) return;
 
         // QUIZ
         if (data.equals("quiz:go")) {
-            userRepo.startQuiz(chatId);
+            userRepo.startQuiz(chatId, followups.rulesOf(FollowupEngine.QUIZ_FINISHED));
             editOrSendQuestion(cq, 1);
             answerCb(cq, "Поехали 🚀");
             return;
@@ -246,6 +556,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
             } else {
                 QuizResult res = QuizContent.calcResult(newScore);
                 userRepo.finishQuiz(chatId, res, newScore);
+                fireFollowups(FollowupEngine.QUIZ_FINISHED, chatId);
                 editOrSendResult(cq, res, newScore);
                 answerCb(cq, "Готово ✅");
             }
@@ -304,15 +615,71 @@ public class MaximTestBot extends TelegramLongPollingBot {
 
         if (data.equals("admin:broadcast")) {
             if (!config.isAdmin(userId)) { answerCb(cq, "Нет доступа"); return; }
-            userRepo.setState(chatId, UserState.ADMIN_BROADCAST_WAIT_TEXT);
-            sendHtml(chatId, """
-                    📨 <b>Рассылка</b>
-
-                    Отправьте следующим сообщением текст, который нужно разослать всем пользователям.
-                    """, InlineKeyboards.oneColumn(List.of(
-                    InlineKeyboards.cb("⬅️ Назад", "admin:menu")
-            )));
-            answerCb(cq, "Жду текст рассылки");
+            broadcastDrafts.put(chatId, Segment.ALL);
+            sendHtml(chatId, segmentPickerText(Segment.ALL), segmentPickerKeyboard(Segment.ALL));
+            answerCb(cq, "Выберите аудиторию");
+            return;
+        }
+
+        // выбор сегмента рассылки: bseg:<r|p|q|a> — следующее значение фильтра, bseg:next — к вводу текста
+        if (data.startsWith("bseg:")) {
+            if (!config.isAdmin(userId)) { answerCb(cq, "Нет доступа"); return; }
+            Segment seg = broadcastDrafts.getOrDefault(chatId, Segment.ALL);
+            String what = data.substring("bseg:".length());
+            if (what.equals("next")) {
+                userRepo.setState(chatId, UserState.ADMIN_BROADCAST_WAIT_TEXT);
+                sendHtml(chatId, """
+                        📨 <b>Рассылка</b>
+
+                        Аудитория: %s — <b>%d</b> польз.
+                        Отправьте следующим сообщением текст рассылки.
+                        """.formatted(seg.describe(), userRepo.countSegment(seg)), InlineKeyboards.oneColumn(List.of(
+                        InlineKeyboards.cb("⬅️ Назад", "admin:menu")
+                )));
+                answerCb(cq, "Жду текст рассылки");
+                return;
+            }
+            seg = switch (what) {
+                case "r" -> seg.withLastResult(seg.lastResult() == QuizResult.values()[QuizResult.values().length - 1]
+                        ? null : nextOf(QuizResult.values(), seg.lastResult()));
+                case "p" -> seg.withPurchase(nextOf(Segment.Purchase.values(), seg.purchase()));
+                case "q" -> seg.withQuiz(nextOf(Segment.Quiz.values(), seg.quiz()));
+                case "a" -> seg.withActiveDays(seg.activeDays() == null ? Integer.valueOf(7)
+                        : seg.activeDays() == 7 ? Integer.valueOf(30) : null);
+                default -> seg;
+            };
+            broadcastDrafts.put(chatId, seg);
+
+            EditMessageText em = new EditMessageText();
+            em.setChatId(chatId);
+            em.setMessageId(cq.getMessage().getMessageId());
+            em.setText(segmentPickerText(seg));
+            em.setParseMode(ParseMode.HTML);
+            em.setReplyMarkup(segmentPickerKeyboard(seg));
+            outbound.call(chatId, () -> execute(em));
+            answerCb(cq, "Ок");
+            return;
+        }
+
+        // управление рассылкой: bcast:<pause|resume|cancel>:<id>
+        if (data.startsWith("bcast:")) {
+            if (!config.isAdmin(userId)) { answerCb(cq, "Нет доступа"); return; }
+            String[] parts = data.split(":");
+            long jobId = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+            boolean done = switch (parts[1]) {
+                case "pause" -> broadcasts.pause(jobId);
+                case "resume" -> broadcasts.resume(jobId);
+                case "cancel" -> broadcasts.cancel(jobId);
+                default -> false;
+            };
+            answerCb(cq, done ? "Ок" : "Уже неактуально");
+            return;
+        }
+
+        if (data.equals("admin:runtime")) {
+            if (!config.isAdmin(userId)) { answerCb(cq, "Нет доступа"); return; }
+            sendAdminRuntime(chatId);
+            answerCb(cq, "Ок");
             return;
         }
 
@@ -330,111 +697,49 @@ public class MaximTestBot extends TelegramLongPollingBot {
     // Campaigns tick
     // =========================
 
-    private void processCampaignsTick() throws Exception {
-        if (!config.paymentsEnabled()) return;
-
-        long now = System.currentTimeMillis();
-
-        processUpsell15m(now);
-        processFollowupAudio24h(now);
-
-        // 5 минут после покупки аудио — оффер курса (со ссылкой)
-        processSystemOffer5m(now);
-
-        // НОВОЕ: 5 минут после отправки оффера — авто-инвойс на систему
-        processSystemInvoiceAfterOffer5m(now);
-
-        processFollowupSystem24h(now);
-    }
-
-    private void processUpsell15m(long now) throws Exception {
-        // оставлено как у тебя (не трогаю)
+    // Новое отложенное сообщение — новый элемент списка (и метод отправки), без изменений схемы.
+    private List<FollowupRule> followupRules() {
+        return List.of(
+                // 24 часа после теста, если НЕ купили аудио
+                new FollowupRule(RULE_FOLLOWUP_AUDIO_24H, FollowupEngine.QUIZ_FINISHED, FOLLOWUP_24H_MS,
+                        u -> u.audioPurchasedAt() != null, true, campaign(this::sendFollowupAudio24h)),
+                // 5 минут после покупки аудио — оффер курса (со ссылкой)
+                new FollowupRule(RULE_SYSTEM_OFFER_5M, FollowupEngine.AUDIO_PURCHASED, SYSTEM_OFFER_5M_MS,
+                        u -> u.systemPurchasedAt() != null, true, campaign(this::sendSystemOfferAfterAudio5m)),
+                // 5 минут после отправки оффера — авто-инвойс на систему
+                new FollowupRule(RULE_SYSTEM_INVOICE_5M, FollowupEngine.afterSent(RULE_SYSTEM_OFFER_5M), SYSTEM_INVOICE_AFTER_OFFER_5M_MS,
+                        u -> u.systemPurchasedAt() != null, true, campaign(this::sendSystemInvoice)),
+                // 24 часа после аудио, если НЕ купили систему
+                new FollowupRule(RULE_FOLLOWUP_SYSTEM_24H, FollowupEngine.AUDIO_PURCHASED, FOLLOWUP_24H_MS,
+                        u -> u.systemPurchasedAt() != null, true, campaign(this::sendFollowupSystem24h))
+        );
     }
 
-    private void processSystemOffer5m(long now) throws Exception {
-        long cutoff = now - SYSTEM_OFFER_5M_MS;
-        var candidates = userRepo.listSystemOffer5mCandidates(cutoff);
-        for (var c : candidates) {
-            long chatId = c.chatId();
-
-            if (paymentRepo.existsSucceededByPrefix(chatId, PAYLOAD_SYSTEM_PREFIX)) {
-                userRepo.markSystemPurchasedNow(chatId);
-                userRepo.markSystemOffer5mSentNow(chatId);
-                continue;
-            }
-
-            try {
-                sendSystemOfferAfterAudio5m(chatId);
-                userRepo.markSystemOffer5mSentNow(chatId);
-            } catch (TelegramApiException e) {
-                log.warn("sendSystemOfferAfterAudio5m failed {}: {}", chatId, e.getMessage());
-            }
-        }
+    // отложенные сообщения идут в полосе CAMPAIGN: уступают ответам пользователям и оплате
+    private FollowupRule.Message campaign(FollowupRule.Message message) {
+        return chatId -> outbound.inLane(OutboundSender.Lane.CAMPAIGN, () -> {
+            message.send(chatId);
+            return null;
+        });
     }
 
-    private void processSystemInvoiceAfterOffer5m(long now) throws Exception {
-        long cutoff = now - SYSTEM_INVOICE_AFTER_OFFER_5M_MS;
-        var candidates = userRepo.listSystemInvoice5mCandidates(cutoff);
-
-        for (var c : candidates) {
-            long chatId = c.chatId();
-
-            // если систему уже купили — не шлем
-            if (paymentRepo.existsSucceededByPrefix(chatId, PAYLOAD_SYSTEM_PREFIX)) {
-                userRepo.markSystemPurchasedNow(chatId);
-                userRepo.markSystemInvoice5mSentNow(chatId);
-                continue;
-            }
-
-            try {
-                sendSystemInvoice(chatId);
-                userRepo.markSystemInvoice5mSentNow(chatId);
-            } catch (TelegramApiException e) {
-                log.warn("sendSystemInvoice(auto) failed {}: {}", chatId, e.getMessage());
-            }
-        }
+    private void startFollowups() throws Exception {
+        // покупки, не отмеченные в users (например, упали между оплатой и отметкой), — до первого тика,
+        // чтобы купившим не ушло лишнего
+        int reconciled = userRepo.reconcilePurchases(PAYLOAD_AUDIO_PREFIX, PAYLOAD_SYSTEM_PREFIX);
+        if (reconciled > 0) log.info("followups: reconciled {} purchases from payments", reconciled);
     }
 
-    private void processFollowupAudio24h(long now) throws Exception {
-        long cutoff = now - FOLLOWUP_24H_MS;
-        var candidates = userRepo.listFollowupAudio24hCandidates(cutoff);
-        for (var c : candidates) {
-            long chatId = c.chatId();
-
-            if (paymentRepo.existsSucceededByPrefix(chatId, PAYLOAD_AUDIO_PREFIX)) {
-                userRepo.markAudioPurchasedNow(chatId);
-                userRepo.markFollowupAudio24hSentNow(chatId);
-                continue;
-            }
-
-            try {
-                sendFollowupAudio24h(chatId);
-                userRepo.markFollowupAudio24hSentNow(chatId);
-            } catch (TelegramApiException e) {
-                log.warn("sendFollowupAudio24h failed {}: {}", chatId, e.getMessage());
-            }
-        }
+    private void fireFollowups(String event, long chatId) {
+        if (config.paymentsEnabled()) followups.fire(event, chatId);
     }
 
-    private void processFollowupSystem24h(long now) throws Exception {
-        long cutoff = now - FOLLOWUP_24H_MS;
-        var candidates = userRepo.listFollowupSystem24hCandidates(cutoff);
-        for (var c : candidates) {
-            long chatId = c.chatId();
-
-            if (paymentRepo.existsSucceededByPrefix(chatId, PAYLOAD_SYSTEM_PREFIX)) {
-                userRepo.markSystemPurchasedNow(chatId);
-                userRepo.markFollowupSystem24hSentNow(chatId);
-                continue;
-            }
-
-            try {
-                sendFollowupSystem24h(chatId);
-                userRepo.markFollowupSystem24hSentNow(chatId);
-            } catch (TelegramApiException e) {
-                log.warn("sendFollowupSystem24h failed {}: {}", chatId, e.getMessage());
-            }
-        }
+    private void markBlocked(long[] chatIds) {
+        if (chatIds.length == 0) return;
+        userRepo.markBlocked(chatIds).whenComplete((n, e) -> {
+            if (e != null) log.warn("mark blocked failed for {} chats: {}", chatIds.length, e.toString());
+            else if (n > 0) log.info("marked {} chats as blocked", n);
+        });
     }
 
     // =========================
@@ -470,7 +775,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         sm.setChatId(chatId);
         sm.setText("Ты скачала гайд, но так и не узнала главную причину его молчания. Скидка на аудио сгорает сегодня. Цена 490₽ — как чашка кофе");
         sm.setReplyMarkup(kb);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     private void sendFollowupSystem24h(long chatId) throws TelegramApiException {
@@ -482,7 +787,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         sm.setChatId(chatId);
         sm.setText("Как тебе аудио? Узнала мужа?\nЧтобы закрепить результат и получить Матрицу Ответственности + Контракт Безопасности, заходи в полный курс");
         sm.setReplyMarkup(kb);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     private void sendSystemAccessGranted(long chatId) throws TelegramApiException {
@@ -494,7 +799,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         sm.setText("Все, пути назад нет, теперь ты с нами\uD83D\uDE0E \nФайлы слишком тяжелые для переписки (там чистый концентрат без воды), поэтому я залил их по секретной ссылке.\n\n<b>Твой ключ доступа:</b>\n\uD83D\uDD13 https://drive.google.com/drive/folders/1ATxfDQ43UWyHcAxiBwF-RnDl08i8X7DJ?usp=sharing \n\nСкачивай, пока ссылка горячая, и погнали внедрять!");
         sm.setParseMode(ParseMode.HTML);
         sm.setReplyMarkup(kb);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     // =========================
@@ -529,7 +834,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         );
         userRepo.setState(chatId, UserState.PAYMENT_PENDING);
 
-        execute(inv);
+        outbound.call(chatId, () -> execute(inv));
     }
 
     private void sendSystemInvoice(long chatId) throws Exception {
@@ -560,7 +865,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         );
         userRepo.setState(chatId, UserState.PAYMENT_PENDING);
 
-        execute(inv);
+        outbound.call(chatId, () -> execute(inv));
     }
 
     private void onPreCheckout(PreCheckoutQuery pcq) {
@@ -570,8 +875,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
             String error = null;
 
             try {
-                var row = paymentRepo.get(payload);
-                ok = (row != null && !row.delivered());
+                ok = paymentRepo.isOpenInvoice(payload);
                 if (!ok) error = "Платеж не найден или уже обработан.";
             } catch (Exception e) {
                 ok = false;
@@ -582,7 +886,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
             ans.setPreCheckoutQueryId(pcq.getId());
             ans.setOk(ok);
             if (!ok && error != null) ans.setErrorMessage(error);
-            execute(ans);
+            outbound.answer(OutboundSender.Lane.PAYMENT, () -> execute(ans));
         } catch (Exception e) {
             log.warn("pre_checkout handling failed: {}", e.toString());
         }
@@ -593,14 +897,6 @@ public class MaximTestBot extends TelegramLongPollingBot {
         if (sp == null) return;
 
         String payload = sp.getInvoicePayload();
-        var row = paymentRepo.get(payload);
-        if (row == null) {
-            sendText(chatId, "⚠️ Платеж получен, но не найден в базе. Напишите администратору.");
-            return;
-        }
-        if (row.delivered()) return;
-
-        paymentRepo.updateStatus(payload, PaymentStatus.SUCCEEDED);
 
         // контакт
         String receiptContact = null;
@@ -609,105 +905,159 @@ public class MaximTestBot extends TelegramLongPollingBot {
             if (oi.getEmail() != null && !oi.getEmail().isBlank()) receiptContact = oi.getEmail();
             else if (oi.getPhoneNumber() != null && !oi.getPhoneNumber().isBlank()) receiptContact = oi.getPhoneNumber();
         }
-        if (receiptContact != null) {
-            paymentRepo.updateReceiptContact(payload, receiptContact);
-            userRepo.setReceiptContact(chatId, receiptContact);
-        }
 
-        if (payload.startsWith(PAYLOAD_AUDIO_PREFIX)) {
-            userRepo.markAudioPurchasedNow(chatId);
-            deliverAudioBundle(chatId, payload);
-            return;
+        // PENDING -> SUCCEEDED вместе с контактом, отметкой покупки и постановкой выдачи — один коммит;
+        // повторный successful_payment (или уже выданный платеж) переход не пройдет и ничего не сделает
+        var paid = paymentRepo.paid(payload, receiptContact);
+        boolean audio = payload.startsWith(PAYLOAD_AUDIO_PREFIX);
+        boolean system = payload.startsWith(PAYLOAD_SYSTEM_PREFIX);
+        boolean applied;
+        if (audio) {
+            // выдача (загрузка альбома) — в воркере, поток апдейтов не ждет
+            applied = userRepo.markAudioPaid(chatId, paid, receiptContact, payload);
+        } else if (system) {
+            // запланированные оффер/инвойс/напоминание гасятся правилами по system_purchased_at;
+            // доступ уходит через outbox (ключ — платеж)
+            applied = userRepo.markSystemPaid(chatId, paid, receiptContact, new OutboxRepository.Message(
+                    OUTBOX_SYSTEM_ACCESS + ":" + payload, chatId, OUTBOX_SYSTEM_ACCESS, payload));
+        } else {
+            applied = userRepo.markPaid(chatId, paid, receiptContact);
         }
 
-        if (payload.startsWith(PAYLOAD_SYSTEM_PREFIX)) {
-            userRepo.markSystemPurchasedNow(chatId);
-            // если авто-инвойс был запланирован — гасим, чтобы больше не пытался
-            userRepo.markSystemInvoice5mSentNow(chatId);
-            deliverSystemAccess(chatId, payload);
+        if (!applied) {
+            if (paymentRepo.get(payload) == null) {
+                sendText(chatId, "⚠️ Платеж получен, но не найден в базе. Напишите администратору.");
+            }
             return;
         }
 
-        sendText(chatId, "✅ Оплата прошла. Если доступ не пришёл — напишите администратору.");
+        if (audio) {
+            fireFollowups(FollowupEngine.AUDIO_PURCHASED, chatId);
+            audioDeliveries.submit(payload);
+        } else if (system) {
+            outbox.wake();
+        } else {
+            sendText(chatId, "✅ Оплата прошла. Если доступ не пришёл — напишите администратору.");
+        }
     }
 
-    private void deliverSystemAccess(long chatId, String paymentId) throws Exception {
+    private boolean sendSystemAccessIfPending(long chatId, String paymentId) throws Exception {
         var row = paymentRepo.get(paymentId);
-        if (row == null || row.delivered()) return;
-
+        if (row == null || row.delivered()) return false;
         sendSystemAccessGranted(chatId);
-
-        paymentRepo.markDelivered(paymentId);
-        userRepo.setState(chatId, UserState.IDLE);
+        return true;
     }
 
-    private void deliverAudioBundle(long chatId, String paymentId) throws Exception {
-        sendText(chatId, "Оплата прошла успешно ✅ \n\nВот ваша настройка системы понимания 👇");
+    // delivered — только после подтвержденной отправки
+    private void onSystemAccessSent(long chatId, String paymentId) throws Exception {
+        userRepo.markPaymentDelivered(chatId, paymentRepo.delivered(paymentId));
+    }
 
-        var row = paymentRepo.get(paymentId);
-        if (row == null || row.delivered()) return;
+    // шаги выдачи аудио (DeliveryWorker): каждый подтвержденный шаг после рестарта не повторяется
 
-        java.util.ArrayList<InputMedia> medias = new java.util.ArrayList<>();
-        java.util.ArrayList<String> fileNames = new java.util.ArrayList<>();
+    private void sendAudioPaidIntro(long chatId, String paymentId) throws TelegramApiException {
+        sendText(chatId, "Оплата прошла успешно ✅ \n\nВот ваша настройка системы понимания 👇");
+    }
 
+    private void sendAudioBundle(long chatId, String paymentId) throws Exception {
+        List<MediaCatalog.Entry> files = new ArrayList<>();
         for (String fileName : config.audioFiles()) {
-            Path path = config.mediaDir().resolve(fileName);
-            if (!Files.exists(path)) {
-                sendText(chatId, "⚠️ Аудио-файл не найден в папке media: " + fileName);
+            MediaCatalog.Entry entry = mediaCatalog.get(fileName);
+            if (entry == null) {
+                log.warn("audio file not found in media dir: {}", fileName);
                 continue;
             }
+            files.add(audioDerivatives.forDelivery(entry));
+        }
 
-            String cacheKey = "audio:" + fileName;
-            String cachedFileId = mediaCacheRepo.getFileId(cacheKey);
+        if (files.size() < 2) {
+            throw new IllegalStateException("audio album needs at least 2 files, found " + files.size() + " in " + config.mediaDir());
+        }
 
-            InputMediaAudio media = new InputMediaAudio();
-            try {
-                if (cachedFileId != null && !cachedFileId.isBlank()) {
-                    media.setMedia(cachedFileId);
-                } else {
-                    media.setMedia(path.toFile(), fileName);
+        sendAudioGroup(chatId, files, true);
+    }
+
+    // Файлы альбома — по file_id; файл без него заливается в служебный чат (одна загрузка на всех
+    // одновременных покупателей). Без служебного чата или при ее ошибке недостающие файлы загружает альбом
+    // одного из покупателей, остальные ждут его и шлют по полученным file_id.
+    private void sendAudioGroup(long chatId, List<MediaCatalog.Entry> files, boolean healStale) throws Exception {
+        Long storageChatId = config.mediaStorageChatId();
+        List<String> keys = files.stream().map(MediaCatalog.Entry::cacheKey).toList();
+        if (storageChatId != null) {
+            for (MediaCatalog.Entry file : files) {
+                try {
+                    mediaFileIds.resolve(file.cacheKey(), () -> outbound.inLane(OutboundSender.Lane.UPLOAD,
+                            () -> uploadToStorage(storageChatId, file.path(), MediaKind.AUDIO)));
+                } catch (TelegramApiException e) {
+                    log.warn("storage upload of {} failed: {}, uploading with the album", file.name(), e.toString());
                 }
+            }
+        }
 
-                media.setCaption(fileName);
-                medias.add(media);
-                fileNames.add(fileName);
-            } catch (Exception e) {
-                log.error("Failed to prepare audio media for {}: {}", fileName, e.getMessage(), e);
-                sendText(chatId, "⚠️ Не удалось подготовить аудио-файл: " + fileName);
+        // с какими file_id ушел альбом — их и забываем, если Telegram отверг один из них
+        String[][] sentWith = {null};
+        try {
+            String[] fileIds = mediaFileIds.resolveAll(keys, known -> {
+                sentWith[0] = known;
+                return sendAlbum(chatId, files, known);
+            });
+            if (sentWith[0] == null) {
+                sentWith[0] = fileIds;
+                sendAlbum(chatId, files, fileIds);
             }
+        } catch (TelegramApiException e) {
+            if (!healStale || !OutboundSender.isStaleFileId(e)) throw e;
+            // какой из file_id альбома устарел, не сказано — забываем все и один раз загружаем заново
+            log.warn("cached audio file_id rejected for chat {}: {}, re-uploading", chatId, e.getMessage());
+            for (int i = 0; sentWith[0] != null && i < files.size(); i++) {
+                if (sentWith[0][i] != null) mediaFileIds.invalidate(keys.get(i), sentWith[0][i]);
+            }
+            sendAudioGroup(chatId, files, false);
         }
+    }
 
-        if (medias.size() < 2) {
-            sendText(chatId, "⚠️ Не удалось собрать альбом (нужно минимум 2 аудио). Проверьте файлы в /media.");
-            return;
+    // Альбом: файлы с file_id — по нему, остальные загружаются в самом альбоме. Возвращает file_id
+    // всех файлов по индексам (загруженных — из ответа Telegram, null — если он его не вернул).
+    private String[] sendAlbum(long chatId, List<MediaCatalog.Entry> files, String[] fileIds) throws TelegramApiException {
+        List<InputMedia> medias = new ArrayList<>();
+        // есть файлы без file_id — альбом загружает их сам и занимает соединение надолго
+        OutboundSender.Lane lane = OutboundSender.Lane.INTERACTIVE;
+        for (int i = 0; i < files.size(); i++) {
+            MediaCatalog.Entry file = files.get(i);
+            InputMediaAudio media = new InputMediaAudio();
+            if (fileIds[i] != null) {
+                media.setMedia(fileIds[i]);
+            } else {
+                media.setMedia(file.path().toFile(), file.name());
+                lane = OutboundSender.Lane.UPLOAD;
+            }
+            media.setCaption(file.name());
+            medias.add(media);
         }
 
         SendMediaGroup smg = new SendMediaGroup();
         smg.setChatId(chatId);
         smg.setMedias(medias);
+        List<Message> sentMessages = outbound.call(lane, chatId, () -> execute(smg));
 
-        List<Message> sentMessages;
-        try {
-            sentMessages = execute(smg);
-        } catch (TelegramApiException e) {
-            log.error("sendMediaGroup failed: {}", e.getMessage(), e);
-            sendText(chatId, "⚠️ Не удалось отправить аудио (ошибка Telegram). Напишите администратору.");
-            return;
-        }
-
-        for (int i = 0; i < sentMessages.size() && i < fileNames.size(); i++) {
+        String[] result = fileIds.clone();
+        for (int i = 0; i < sentMessages.size() && i < files.size(); i++) {
             Message m = sentMessages.get(i);
-            if (m != null && m.getAudio() != null && m.getAudio().getFileId() != null) {
-                String fn = fileNames.get(i);
-                mediaCacheRepo.putFileId("audio:" + fn, m.getAudio().getFileId());
-            }
+            if (result[i] == null && m != null && m.getAudio() != null) result[i] = m.getAudio().getFileId();
         }
+        return result;
+    }
 
-        paymentRepo.markDelivered(paymentId);
-        userRepo.setState(chatId, UserState.IDLE);
-
-        // оффер на курс придет через 5 минут — processSystemOffer5m()
-        // авто-инвойс придет через 5 минут после оффера — processSystemInvoiceAfterOffer5m()
+    private void onAudioDeliveryFailed(long chatId, String paymentId, Exception error) {
+        if (error instanceof TelegramApiException te && OutboundSender.isChatUnreachable(te)) {
+            markBlocked(new long[]{chatId});
+            return;
+        }
+        try {
+            sendText(chatId, "⚠️ Не удалось отправить аудио. Напишите администратору — доступ сохранен.");
+        } catch (TelegramApiException e) {
+            log.warn("delivery failure notice to {} failed: {}", chatId, e.toString());
+        }
     }
 
     // =========================
@@ -722,7 +1072,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         sm.setChatId(chatId);
         sm.setText(QuizContent.welcomeText());
         sm.setReplyMarkup(kb);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     private InlineKeyboardMarkup answerKeyboard(int qIndex) {
@@ -744,7 +1094,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         em.setReplyMarkup(answerKeyboard(qIndex));
 
         try {
-            execute(em);
+            outbound.call(cq.getMessage().getChatId(), () -> execute(em));
         } catch (TelegramApiException e) {
             sendHtml(cq.getMessage().getChatId(), text, answerKeyboard(qIndex));
         }
@@ -765,7 +1115,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         em.setReplyMarkup(kb);
 
         try {
-            execute(em);
+            outbound.call(cq.getMessage().getChatId(), () -> execute(em));
         } catch (TelegramApiException e) {
             sendHtml(cq.getMessage().getChatId(), text, kb);
         }
@@ -782,32 +1132,43 @@ public class MaximTestBot extends TelegramLongPollingBot {
             case ALLIES -> config.pdfAllies();
         };
 
-        Path path = config.mediaDir().resolve(fileName);
-        if (!Files.exists(path)) {
+        MediaCatalog.Entry file = mediaCatalog.get(fileName);
+        if (file == null) {
             sendText(chatId, "⚠️ Файл не найден в папке media: " + fileName);
             return;
         }
 
-        String cacheKey = "pdf:" + fileName;
-        String cachedFileId = mediaCacheRepo.getFileId(cacheKey);
+        sendPdfFile(chatId, file, true);
+    }
+
+    // По file_id; если его еще нет — загрузка этому пользователю, одна на всех одновременных отправок
+    // (остальные ждут ее и шлют по полученному file_id).
+    private void sendPdfFile(long chatId, MediaCatalog.Entry file, boolean healStale) throws Exception {
+        boolean[] uploaded = {false};
+        String fileId = mediaFileIds.resolve(file.cacheKey(), () -> {
+            uploaded[0] = true;
+            Message m = sendPdf(OutboundSender.Lane.UPLOAD, chatId, new InputFile(file.path().toFile(), file.name()));
+            return m != null && m.getDocument() != null ? m.getDocument().getFileId() : null;
+        });
+        if (uploaded[0]) return;
+
+        try {
+            sendPdf(OutboundSender.Lane.INTERACTIVE, chatId, new InputFile(fileId));
+        } catch (TelegramApiException e) {
+            if (!healStale || !OutboundSender.isStaleFileId(e)) throw e;
+            log.warn("cached pdf file_id rejected for chat {}: {}, re-uploading", chatId, e.getMessage());
+            mediaFileIds.invalidate(file.cacheKey(), fileId);
+            sendPdfFile(chatId, file, false);
+        }
+    }
 
+    private Message sendPdf(OutboundSender.Lane lane, long chatId, InputFile document) throws TelegramApiException {
         SendDocument sd = new SendDocument();
         sd.setChatId(chatId);
         sd.setCaption("📎 Ваш PDF готов");
         sd.setParseMode(ParseMode.HTML);
-
-        if (cachedFileId != null) {
-            sd.setDocument(new org.telegram.telegrambots.meta.api.objects.InputFile(cachedFileId));
-            execute(sd);
-            return;
-        }
-
-        sd.setDocument(new org.telegram.telegrambots.meta.api.objects.InputFile(path.toFile(), fileName));
-        Message m = execute(sd);
-
-        if (m != null && m.getDocument() != null && m.getDocument().getFileId() != null) {
-            mediaCacheRepo.putFileId(cacheKey, m.getDocument().getFileId());
-        }
+        sd.setDocument(document);
+        return outbound.call(lane, chatId, () -> execute(sd));
     }
 
     // =========================
@@ -818,7 +1179,8 @@ public class MaximTestBot extends TelegramLongPollingBot {
         InlineKeyboardMarkup kb = InlineKeyboards.oneColumn(List.of(
                 InlineKeyboards.cb("📊 Статистика", "admin:stats"),
                 InlineKeyboards.cb("📨 Рассылка", "admin:broadcast"),
-                InlineKeyboards.cb("📤 Экспорт CSV", "admin:export")
+                InlineKeyboards.cb("📤 Экспорт CSV", "admin:export"),
+                InlineKeyboards.cb("⚙️ Нагрузка", "admin:runtime")
         ));
         sendHtml(chatId, "<b>Админ-панель</b>", kb);
     }
@@ -827,7 +1189,8 @@ public class MaximTestBot extends TelegramLongPollingBot {
         InlineKeyboardMarkup kb = InlineKeyboards.oneColumn(List.of(
                 InlineKeyboards.cb("📊 Статистика", "admin:stats"),
                 InlineKeyboards.cb("📨 Рассылка", "admin:broadcast"),
-                InlineKeyboards.cb("📤 Экспорт CSV", "admin:export")
+                InlineKeyboards.cb("📤 Экспорт CSV", "admin:export"),
+                InlineKeyboards.cb("⚙️ Нагрузка", "admin:runtime")
         ));
         EditMessageText em = new EditMessageText();
         em.setChatId(cq.getMessage().getChatId());
@@ -837,7 +1200,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         em.setReplyMarkup(kb);
 
         try {
-            execute(em);
+            outbound.call(cq.getMessage().getChatId(), () -> execute(em));
         } catch (TelegramApiException e) {
             sendHtml(cq.getMessage().getChatId(), "<b>Админ-панель</b>", kb);
         }
@@ -846,6 +1209,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
     private void sendAdminStats(long chatId) throws Exception {
         long users = userRepo.countUsers();
         long finished = userRepo.countFinished();
+        long blocked = userRepo.countBlocked();
         long pay = paymentRepo.countSucceeded();
 
         sendHtml(chatId, """
@@ -853,30 +1217,197 @@ public class MaximTestBot extends TelegramLongPollingBot {
 
                 👥 Пользователей: <b>%d</b>
                 ✅ Завершили тест: <b>%d</b>
+                🚫 Заблокировали бота: <b>%d</b>
                 💳 Успешных оплат: <b>%d</b>
-                """.formatted(users, finished, pay), InlineKeyboards.oneColumn(List.of(
+                """.formatted(users, finished, blocked, pay), InlineKeyboards.oneColumn(List.of(
                 InlineKeyboards.cb("⬅️ Назад", "admin:menu")
         )));
     }
 
-    private void doBroadcast(long adminChatId, String text) throws Exception {
-        long[] ids = userRepo.listAllChatIds();
-        int ok = 0;
-        int fail = 0;
+    private void sendAdminRuntime(long chatId) throws Exception {
+        var d = dispatcher.stats();
+        var w = db.writerStats();
+        var uc = userRepo.cacheStats();
+        var pw = userRepo.profileWriteStats();
+        var o = outbound.stats();
+        var oc = outboxRepo.counts();
+        var os = outbox.stats();
+        var dc = deliveryRepo.counts();
+        var mf = mediaFileIds.stats();
+        var oi = paymentRepo.openInvoiceStats();
+        WebhookServer wh = webhook;
+        String intake;
+        if (wh == null) {
+            intake = "long polling";
+        } else {
+            var ws = wh.stats();
+            intake = "webhook, принято %d, отклонено %d, нечитаемых %d".formatted(ws.accepted(), ws.rejected(), ws.malformed());
+        }
+        StringBuilder lanes = new StringBuilder();
+        for (var l : o.lanes()) {
+            lanes.append("\n  %s: %d, ср. %d мс, p99 ≤ %d мс, макс. %d мс".formatted(
+                    l.lane(), l.calls(), l.avgMs(), l.p99Ms(), l.maxMs()));
+        }
+
+        sendHtml(chatId, """
+                ⚙️ <b>Нагрузка</b>
+
+                Режим потоков: <b>%s</b>
+                Прием апдейтов: %s
+                Полосы апдейтов: <b>%d</b> (заняты: %d)
+                В очереди: <b>%d</b> (макс. в полосе: %d)
+                Принято / обработано: %d / %d
+                Загрузка полос: <b>%.1f%%</b>
+
+                Исходящие: <b>%.1f</b> / %.1f msg/s
+                Отправлено: %d, 429: %d, ошибок: %d, ожидание лимита: %d мс
+                Запросов в полете: %d / %d, полосы (время вызова):%s
+
+                SQLite: профиль %s
+                Записей / коммитов: %d / %d (в очереди: %d, ошибок: %d)
+                Кеш пользователей: %d / %d, попаданий %.1f%% (промахов: %d, вытеснено: %d)
+                Запись профиля: %d, пропущено без изменений: %d
+                Отложенных сообщений в расписании: %d
+                Открытых инвойсов в памяти: %d, pre-checkout из памяти %.1f%% (из БД: %d)
+                Outbox: в очереди %d, dead %d (отправлено: %d, повторов: %d)
+                Выдача аудио: в работе %d, незавершенных %d, неудачных %d
+                Медиа: файлов %d, file_id в памяти %d (из памяти: %d, из SQLite: %d, загрузок: %d, ожидали чужую: %d)
+                Рассылок в работе: %d
+                """.formatted(
+                config.executionMode(),
+                intake,
+                d.lanes(), d.busyLanes(),
+                d.queued(), d.maxLaneQueue(),
+                d.submitted(), d.processed(),
+                d.utilization() * 100.0,
+                o.rate(), o.maxRate(),
+                o.sent(), o.throttled(), o.failed(), o.waitedMs(),
+                o.inFlight(), o.connections(), lanes,
+                db.profile(), w.commands(), w.groups(), w.queued(), w.failed(),
+                uc.size(), uc.maxSize(), uc.hitRate() * 100.0, uc.misses(), uc.evictions(),
+                pw.written(), pw.skipped(),
+                followups.countScheduled(),
+                oi.size(), oi.hitRate() * 100.0, oi.misses(),
+                oc.pending(), oc.dead(), os.sent(), os.retried(),
+                audioDeliveries.activeCount(), dc.open(), dc.failed(),
+                mediaCatalog.size(), mf.size(), mf.hits(), mf.loads(), mf.uploads(), mf.waits(),
+                broadcasts.activeCount()
+        ), InlineKeyboards.oneColumn(List.of(
+                InlineKeyboards.cb("⬅️ Назад", "admin:menu")
+        )));
+    }
 
-        for (long chatId : ids) {
+    private final class BroadcastTransport implements BroadcastRunner.Transport {
+        @Override
+        public BroadcastRunner.PageResult sendPage(long[] chatIds, String text) throws InterruptedException {
+            AtomicInteger ok = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicInteger blocked = new AtomicInteger();
+            long[] unreachable = new long[chatIds.length];
+
+            forEachChat(chatIds, chatId -> {
+                try {
+                    SendMessage sm = new SendMessage();
+                    sm.setChatId(chatId);
+                    sm.setText(text);
+                    outbound.call(OutboundSender.Lane.BROADCAST, chatId, () -> execute(sm));
+                    ok.incrementAndGet();
+                } catch (TelegramApiException e) {
+                    if (OutboundSender.isChatUnreachable(e)) unreachable[blocked.getAndIncrement()] = chatId;
+                    else failed.incrementAndGet();
+                }
+            });
+            markBlocked(Arrays.copyOf(unreachable, blocked.get()));
+            return new BroadcastRunner.PageResult(ok.get(), failed.get(), blocked.get());
+        }
+
+        @Override
+        public void showProgress(BroadcastRepository.Job job) {
             try {
-                SendMessage sm = new SendMessage();
-                sm.setChatId(chatId);
-                sm.setText(text);
-                execute(sm);
-                ok++;
+                String text = broadcastProgressText(job);
+                InlineKeyboardMarkup kb = broadcastKeyboard(job);
+                if (job.progressMessageId() == null) {
+                    SendMessage sm = new SendMessage();
+                    sm.setChatId(job.adminChatId());
+                    sm.setText(text);
+                    sm.setParseMode(ParseMode.HTML);
+                    sm.setReplyMarkup(kb);
+                    Message m = outbound.call(job.adminChatId(), () -> execute(sm));
+                    broadcastRepo.setProgressMessage(job.id(), m.getMessageId());
+                    return;
+                }
+                EditMessageText em = new EditMessageText();
+                em.setChatId(job.adminChatId());
+                em.setMessageId(job.progressMessageId());
+                em.setText(text);
+                em.setParseMode(ParseMode.HTML);
+                em.setReplyMarkup(kb);
+                outbound.call(job.adminChatId(), () -> execute(em));
             } catch (Exception e) {
-                fail++;
+                // "message is not modified" и т.п. — прогресс не критичен
+                log.debug("broadcast #{} progress update failed: {}", job.id(), e.toString());
             }
         }
+    }
+
+    private String segmentPickerText(Segment seg) throws Exception {
+        return """
+                📨 <b>Рассылка</b>
+
+                Аудитория: %s
+                Получателей: <b>%d</b>
+
+                Кнопками ниже меняются фильтры.
+                """.formatted(seg.describe(), userRepo.countSegment(seg));
+    }
+
+    private InlineKeyboardMarkup segmentPickerKeyboard(Segment seg) {
+        return InlineKeyboards.oneColumn(List.of(
+                InlineKeyboards.cb("Результат: " + (seg.lastResult() == null ? "любой" : seg.lastResult().name()), "bseg:r"),
+                InlineKeyboards.cb("Покупки: " + seg.purchase().title, "bseg:p"),
+                InlineKeyboards.cb("Тест: " + seg.quiz().title, "bseg:q"),
+                InlineKeyboards.cb("Активность: " + (seg.activeDays() == null ? "любая" : seg.activeDays() + " дн."), "bseg:a"),
+                InlineKeyboards.cb("➡️ Далее: ввести текст", "bseg:next"),
+                InlineKeyboards.cb("⬅️ Назад", "admin:menu")
+        ));
+    }
 
-        sendText(adminChatId, "📨 Рассылка завершена. Успешно: " + ok + ", ошибок: " + fail);
+    // следующее значение по кругу (null -> первое)
+    private static <E extends Enum<E>> E nextOf(E[] values, E current) {
+        return current == null ? values[0] : values[(current.ordinal() + 1) % values.length];
+    }
+
+    private String broadcastProgressText(BroadcastRepository.Job job) {
+        String status = switch (job.status()) {
+            case RUNNING -> "идет";
+            case PAUSED -> "на паузе";
+            case CANCELLED -> "отменена";
+            case DONE -> "завершена";
+        };
+        double pct = job.total() == 0 ? 100.0 : Math.min(100.0, job.processed() * 100.0 / job.total());
+        return """
+                📨 <b>Рассылка #%d</b> — %s
+                Аудитория: %s
+
+                Обработано: <b>%d</b> / %d (%.1f%%)
+                ✅ Успешно: %d
+                ❌ Ошибок: %d
+                🚫 Заблокировали бота: %d
+                """.formatted(job.id(), status, job.segment().describe(), job.processed(), job.total(), pct, job.ok(), job.failed(), job.blocked());
+    }
+
+    private InlineKeyboardMarkup broadcastKeyboard(BroadcastRepository.Job job) {
+        return switch (job.status()) {
+            case RUNNING -> InlineKeyboards.oneColumn(List.of(
+                    InlineKeyboards.cb("⏸ Пауза", "bcast:pause:" + job.id()),
+                    InlineKeyboards.cb("✖️ Отменить", "bcast:cancel:" + job.id())
+            ));
+            case PAUSED -> InlineKeyboards.oneColumn(List.of(
+                    InlineKeyboards.cb("▶️ Продолжить", "bcast:resume:" + job.id()),
+                    InlineKeyboards.cb("✖️ Отменить", "bcast:cancel:" + job.id())
+            ));
+            case CANCELLED, DONE -> null;
+        };
     }
 
     private void sendUsersCsv(long chatId) throws Exception {
@@ -894,18 +1425,49 @@ public class MaximTestBot extends TelegramLongPollingBot {
                 new java.io.ByteArrayInputStream(bytes), "users.csv"
         ));
 
-        execute(sd);
+        outbound.call(chatId, () -> execute(sd));
     }
 
     // =========================
     // Helpers
     // =========================
 
+    private interface ChatTask {
+        void run(long chatId) throws Exception;
+    }
+
+    // Параллельно выполняет задачу по списку чатов на sendExecutor (не больше sendConcurrency одновременно)
+    // и дожидается завершения всех.
+    private void forEachChat(long[] chatIds, ChatTask task) throws InterruptedException {
+        Semaphore permits = new Semaphore(config.sendConcurrency());
+        CountDownLatch done = new CountDownLatch(chatIds.length);
+
+        for (long chatId : chatIds) {
+            permits.acquire();
+            try {
+                sendExecutor.execute(() -> {
+                    try {
+                        task.run(chatId);
+                    } catch (Exception e) {
+                        log.warn("chat task failed {}: {}", chatId, e.toString());
+                    } finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+
     private void sendText(long chatId, String text) throws TelegramApiException {
         SendMessage sm = new SendMessage();
         sm.setChatId(chatId);
         sm.setText(text);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     private void sendHtml(long chatId, String html, InlineKeyboardMarkup kb) throws TelegramApiException {
@@ -914,7 +1476,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
         sm.setText(html);
         sm.setParseMode(ParseMode.HTML);
         sm.setReplyMarkup(kb);
-        execute(sm);
+        outbound.call(chatId, () -> execute(sm));
     }
 
     private void answerCb(CallbackQuery cq, String text) {
@@ -923,7 +1485,7 @@ public class MaximTestBot extends TelegramLongPollingBot {
             a.setCallbackQueryId(cq.getId());
             a.setText(text);
             a.setShowAlert(false);
-            execute(a);
+            outbound.answer(OutboundSender.Lane.INTERACTIVE, () -> execute(a));
         } catch (Exception ignored) {}
     }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package ru.maximalexeev.bot.campaign;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.maximalexeev.bot.db.BroadcastRepository;
+import ru.maximalexeev.bot.db.Segment;
+import ru.maximalexeev.bot.db.UserRepository;
+import ru.maximalexeev.bot.db.models.BroadcastStatus;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Фоновые рассылки-задания. Идем страницами по chat_id (keyset), после каждой страницы — checkpoint
+// курсора и счетчиков в broadcast_jobs, поэтому после рестарта задание продолжается с того же места
+// (повторно может уйти только недописанная страница). Пауза/отмена — смена статуса в БД,
+// раннер видит ее на следующей странице. Аудитория — сегмент задания; total — его размер на момент старта.
+public class BroadcastRunner {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastRunner.class);
+
+    private static final int PAGE = 100;
+    private static final long PROGRESS_EVERY_MS = 3_000L;
+
+    public record PageResult(int ok, int failed, int blocked) {}
+
+    public interface Transport {
+        PageResult sendPage(long[] chatIds, String text) throws InterruptedException;
+
+        // best-effort: отрисовать/обновить прогресс у админа
+        void showProgress(BroadcastRepository.Job job);
+    }
+
+    private final BroadcastRepository jobs;
+    private final UserRepository users;
+    private final Transport transport;
+    private final ExecutorService executor;
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+
+    public BroadcastRunner(BroadcastRepository jobs, UserRepository users, Transport transport, ExecutorService executor) {
+        this.jobs = jobs;
+        this.users = users;
+        this.transport = transport;
+        this.executor = executor;
+    }
+
+    public long start(long adminChatId, String text, Segment segment) throws Exception {
+        long id = jobs.create(adminChatId, text, segment, users.countSegment(segment));
+        BroadcastRepository.Job job = jobs.get(id);
+        transport.showProgress(job);
+        launch(id);
+        return id;
+    }
+
+    // после рестарта: продолжить все незавершенные (поставленные на паузу ждут админа)
+    public void resumeAll() throws Exception {
+        for (BroadcastRepository.Job job : jobs.listByStatus(BroadcastStatus.RUNNING)) {
+            log.info("broadcast #{}: resuming after chat_id {} ({} / {})", job.id(), job.cursorChatId(), job.processed(), job.total());
+            launch(job.id());
+        }
+    }
+
+    public boolean pause(long id) throws Exception {
+        return changed(id, jobs.transition(id, BroadcastStatus.PAUSED, BroadcastStatus.RUNNING));
+    }
+
+    public boolean resume(long id) throws Exception {
+        if (!changed(id, jobs.transition(id, BroadcastStatus.RUNNING, BroadcastStatus.PAUSED))) return false;
+        launch(id);
+        return true;
+    }
+
+    public boolean cancel(long id) throws Exception {
+        return changed(id, jobs.transition(id, BroadcastStatus.CANCELLED, BroadcastStatus.RUNNING, BroadcastStatus.PAUSED));
+    }
+
+    public int activeCount() {
+        return active.size();
+    }
+
+    private boolean changed(long id, boolean changed) throws Exception {
+        if (changed) transport.showProgress(jobs.get(id));
+        return changed;
+    }
+
+    private void launch(long id) {
+        if (!active.add(id)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    run(id);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("broadcast #{} failed: {}", id, e.toString(), e);
+                } finally {
+                    active.remove(id);
+                    relaunchIfResumed(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            active.remove(id);
+        }
+    }
+
+    // resume мог прийти, пока прежний раннер дорабатывал страницу и уже решил выйти
+    private void relaunchIfResumed(long id) {
+        if (Thread.currentThread().isInterrupted()) return;
+        try {
+            BroadcastRepository.Job job = jobs.get(id);
+            if (job != null && job.status() == BroadcastStatus.RUNNING) launch(id);
+        } catch (Exception e) {
+            log.warn("broadcast #{} status check failed: {}", id, e.toString());
+        }
+    }
+
+    private void run(long id) throws Exception {
+        BroadcastRepository.Job job = jobs.get(id);
+        long lastProgress = System.currentTimeMillis();
+
+        while (job != null && job.status() == BroadcastStatus.RUNNING) {
+            long[] page = users.listChatIdsAfter(job.cursorChatId(), PAGE, job.segment());
+            if (page.length == 0) {
+                jobs.transition(id, BroadcastStatus.DONE, BroadcastStatus.RUNNING);
+                job = jobs.get(id);
+                log.info("broadcast #{} done: ok={}, failed={}, blocked={}", id, job.ok(), job.failed(), job.blocked());
+                break;
+            }
+
+            PageResult r = transport.sendPage(page, job.text());
+            job = jobs.checkpoint(id, page[page.length - 1], r.ok(), r.failed(), r.blocked());
+
+            long now = System.currentTimeMillis();
+            if (now - lastProgress >= PROGRESS_EVERY_MS) {
+                transport.showProgress(job);
+                lastProgress = now;
+            }
+        }
+        if (job != null) transport.showProgress(job);
+    }
+}
@@ -0,0 +1,182 @@
+package ru.maximalexeev.bot.campaign;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.maximalexeev.bot.db.CampaignStateRepository;
+import ru.maximalexeev.bot.db.OutboxRepository;
+import ru.maximalexeev.bot.db.UserRepository;
+import ru.maximalexeev.bot.db.models.UserState;
+import ru.maximalexeev.bot.dispatch.OutboxDispatcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Движок отложенных сообщений по декларативным правилам.
+// Событие (fire) планирует все правила с этим триггером в campaign_state; tick одним range scan по
+// индексу next_due_at забирает наступившее по всем правилам сразу. Пока ближайший срок не наступил,
+// tick в БД не ходит. Наступившее правило отмечается sent_at и ставится в outbox одной командой
+// писателя; отправляет (и повторяет при ошибках) OutboxDispatcher. Фактическая отправка правила X —
+// тоже событие (afterSent(X)), так строятся цепочки.
+public class FollowupEngine {
+    private static final Logger log = LoggerFactory.getLogger(FollowupEngine.class);
+
+    public static final String QUIZ_FINISHED = "quiz_finished";
+    public static final String AUDIO_PURCHASED = "audio_purchased";
+
+    private static final int TICK_BATCH = 500;
+    private static final long BUSY_RETRY_MS = 60_000L;
+    // столько правило ждет, пока пользователь освободится (неоплаченный инвойс, брошенный тест), потом гасится
+    private static final long BUSY_GIVE_UP_MS = 7L * 24 * 3_600_000L;
+
+    private final Map<String, FollowupRule> rules = new LinkedHashMap<>();
+    private final Map<String, List<FollowupRule>> byTrigger = new LinkedHashMap<>();
+    private final List<String> anytimeRules = new ArrayList<>();
+    private final CampaignStateRepository states;
+    private final UserRepository users;
+    private final OutboxDispatcher outbox;
+
+    private final AtomicLong nextDueAt = new AtomicLong(Long.MAX_VALUE);
+
+    public FollowupEngine(List<FollowupRule> rules, CampaignStateRepository states, UserRepository users, OutboxDispatcher outbox) {
+        for (FollowupRule r : rules) {
+            if (this.rules.putIfAbsent(r.id(), r) != null) throw new IllegalArgumentException("duplicate rule " + r.id());
+            byTrigger.computeIfAbsent(r.trigger(), k -> new ArrayList<>()).add(r);
+            if (!r.requireIdle()) anytimeRules.add(r.id());
+        }
+        this.states = states;
+        this.users = users;
+        this.outbox = outbox;
+    }
+
+    public static String afterSent(String ruleId) {
+        return "sent:" + ruleId;
+    }
+
+    static String kind(String ruleId) {
+        return "followup:" + ruleId;
+    }
+
+    // Правила, запускаемые событием, вместе с цепочками после их отправки.
+    public List<String> rulesOf(String event) {
+        List<String> res = new ArrayList<>();
+        collectRules(event, res);
+        return res;
+    }
+
+    private void collectRules(String event, List<String> res) {
+        for (FollowupRule r : byTrigger.getOrDefault(event, List.of())) {
+            if (res.contains(r.id())) continue;
+            res.add(r.id());
+            collectRules(afterSent(r.id()), res);
+        }
+    }
+
+    // до outbox.start(): обработчики правил нужны и уже стоящим в outbox сообщениям
+    public void start() throws Exception {
+        for (FollowupRule r : rules.values()) {
+            outbox.register(kind(r.id()), (chatId, ref) -> sendIfWanted(r, chatId),
+                    (chatId, ref) -> fire(afterSent(r.id()), chatId));
+        }
+        nextDueAt.accumulateAndGet(states.nextDueAt(), Math::min);
+    }
+
+    // Планирует правила события; ждать не обязательно — ближайший срок учитывается после записи.
+    public void fire(String event, long chatId) {
+        List<CampaignStateRepository.Due> due = planned(event, chatId, System.currentTimeMillis());
+        if (due.isEmpty()) return;
+        states.schedule(due).whenComplete((n, e) -> {
+            if (e != null) log.warn("followup schedule failed {} {}: {}", event, chatId, e.toString());
+            else noteDue(due);
+        });
+    }
+
+    // Правило больше не отправлять этому чату (как если бы уже ушло).
+    public void suppress(long chatId, String ruleId) {
+        states.suppress(chatId, ruleId).whenComplete((n, e) -> {
+            if (e != null) log.warn("followup suppress failed {} {}: {}", ruleId, chatId, e.toString());
+        });
+    }
+
+    public void tick(long now) throws Exception {
+        if (now < nextDueAt.get()) return;
+
+        // сбрасываем до чтения: событие, записанное после выборки, само опустит nextDueAt
+        nextDueAt.set(Long.MAX_VALUE);
+        try {
+            processDue(now);
+        } catch (Exception e) {
+            nextDueAt.accumulateAndGet(now + BUSY_RETRY_MS, Math::min);
+            throw e;
+        }
+    }
+
+    private void processDue(long now) throws Exception {
+        // наступившие правила занятых пользователей SQL не отдает (ждут без записей), кроме просроченных
+        List<CampaignStateRepository.Due> due = states.listDue(now, now - BUSY_GIVE_UP_MS, anytimeRules, TICK_BATCH);
+
+        List<CampaignStateRepository.Due> sent = new ArrayList<>();
+        List<CampaignStateRepository.Due> cancelled = new ArrayList<>();
+        List<OutboxRepository.Message> messages = new ArrayList<>();
+
+        for (CampaignStateRepository.Due d : due) {
+            FollowupRule rule = rules.get(d.ruleId());
+            UserRepository.UserRow u = rule == null ? null : users.get(d.chatId());
+            if (u == null || u.blockedAt() != null || rule.suppressedIf().test(u)) {
+                cancelled.add(d);
+            } else if (rule.requireIdle() && u.state() != UserState.IDLE) {
+                // занят дольше BUSY_GIVE_UP_MS — гасим; иначе состояние сменилось после выборки, ждем дальше
+                if (d.dueAt() <= now - BUSY_GIVE_UP_MS) cancelled.add(d);
+            } else {
+                sent.add(d);
+                // ключ — правило + чат + срок: повтор той же пачки не продублирует, а правило,
+                // запланированное заново после сброса (новый тест), уйдет еще раз
+                String kind = kind(rule.id());
+                messages.add(new OutboxRepository.Message(kind + ":" + d.chatId() + ":" + d.dueAt(), d.chatId(), kind, null));
+            }
+        }
+
+        if (!sent.isEmpty() || !cancelled.isEmpty()) {
+            states.apply(new CampaignStateRepository.Outcome(sent, cancelled, List.of(), messages));
+            if (!messages.isEmpty()) outbox.wake();
+        }
+
+        // Полная пачка — сразу следующая. Иначе ближайший будущий срок, а наступившие строки занятых
+        // пользователей перепроверяем раз в BUSY_RETRY_MS, а не на каждом тике.
+        long next;
+        if (due.size() == TICK_BATCH) {
+            next = now;
+        } else {
+            next = states.nextDueAfter(now);
+            if (states.nextDueAt() <= now) next = Math.min(next, now + BUSY_RETRY_MS);
+        }
+        nextDueAt.accumulateAndGet(next, Math::min);
+    }
+
+    // Отправка из outbox (возможно, после повторов): к этому моменту покупка или блокировка
+    // могли сделать сообщение неактуальным.
+    private boolean sendIfWanted(FollowupRule rule, long chatId) throws Exception {
+        UserRepository.UserRow u = users.get(chatId);
+        if (u == null || u.blockedAt() != null || rule.suppressedIf().test(u)) return false;
+        rule.message().send(chatId);
+        return true;
+    }
+
+    public long countScheduled() throws Exception {
+        return states.countScheduled();
+    }
+
+    private List<CampaignStateRepository.Due> planned(String event, long chatId, long at) {
+        List<FollowupRule> triggered = byTrigger.get(event);
+        if (triggered == null) return List.of();
+        List<CampaignStateRepository.Due> res = new ArrayList<>(triggered.size());
+        for (FollowupRule r : triggered) res.add(new CampaignStateRepository.Due(chatId, r.id(), at + r.delayMs()));
+        return res;
+    }
+
+    private void noteDue(List<CampaignStateRepository.Due> due) {
+        for (CampaignStateRepository.Due d : due) nextDueAt.accumulateAndGet(d.dueAt(), Math::min);
+    }
+}
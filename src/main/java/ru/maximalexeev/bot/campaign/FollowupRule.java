@@ -0,0 +1,21 @@
+package ru.maximalexeev.bot.campaign;
+
+import ru.maximalexeev.bot.db.UserRepository;
+
+import java.util.function.Predicate;
+
+// Правило отложенного сообщения: через delayMs после события trigger отправить message,
+// если к этому моменту не сработало suppressedIf. requireIdle — не вклиниваться, пока пользователь
+// в процессе (тест, ввод контакта и т.п.): ждет, пока он вернется в IDLE (не дольше недели, потом гасится).
+public record FollowupRule(
+        String id,
+        String trigger,
+        long delayMs,
+        Predicate<UserRepository.UserRow> suppressedIf,
+        boolean requireIdle,
+        Message message
+) {
+    public interface Message {
+        void send(long chatId) throws Exception;
+    }
+}
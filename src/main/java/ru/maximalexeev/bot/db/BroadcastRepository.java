@@ -0,0 +1,150 @@
+package ru.maximalexeev.bot.db;
+
+import ru.maximalexeev.bot.db.models.BroadcastStatus;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BroadcastRepository {
+    private final Database db;
+
+    public record Job(
+            long id,
+            long adminChatId,
+            String text,
+            Segment segment,
+            BroadcastStatus status,
+            long cursorChatId,
+            long total,
+            long ok,
+            long failed,
+            long blocked,
+            Integer progressMessageId
+    ) {
+        public long processed() {
+            return ok + failed + blocked;
+        }
+    }
+
+    public BroadcastRepository(Database db) {
+        this.db = db;
+    }
+
+    public long create(long adminChatId, String text, Segment segment, long total) throws Exception {
+        long now = System.currentTimeMillis();
+        return db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    INSERT INTO broadcast_jobs(admin_chat_id, text, segment, status, total, created_at, updated_at)
+                    VALUES (?, ?, ?, ?, ?, ?, ?)
+                    RETURNING id
+                    """);
+            ps.setLong(1, adminChatId);
+            ps.setString(2, text);
+            ps.setString(3, segment.encode());
+            ps.setString(4, BroadcastStatus.RUNNING.name());
+            ps.setLong(5, total);
+            ps.setLong(6, now);
+            ps.setLong(7, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+    }
+
+    public Job get(long id) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT * FROM broadcast_jobs WHERE id=?");
+            ps.setLong(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? map(rs) : null;
+            }
+        });
+    }
+
+    public List<Job> listByStatus(BroadcastStatus status) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT * FROM broadcast_jobs WHERE status=? ORDER BY id");
+            ps.setString(1, status.name());
+            List<Job> res = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) res.add(map(rs));
+            }
+            return res;
+        });
+    }
+
+    // Сдвигает курсор за обработанную страницу и прибавляет счетчики; возвращает актуальную строку
+    // (статус мог поменять админ, пока страница рассылалась).
+    public Job checkpoint(long id, long cursorChatId, int ok, int failed, int blocked) throws Exception {
+        long now = System.currentTimeMillis();
+        return db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE broadcast_jobs
+                    SET cursor_chat_id=?, ok=ok+?, failed=failed+?, blocked=blocked+?, updated_at=?
+                    WHERE id=?
+                    RETURNING *
+                    """);
+            ps.setLong(1, cursorChatId);
+            ps.setInt(2, ok);
+            ps.setInt(3, failed);
+            ps.setInt(4, blocked);
+            ps.setLong(5, now);
+            ps.setLong(6, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? map(rs) : null;
+            }
+        });
+    }
+
+    // Переход статуса только из ожидаемого (compare-and-set): true, если строка обновлена.
+    public boolean transition(long id, BroadcastStatus to, BroadcastStatus... from) throws Exception {
+        long now = System.currentTimeMillis();
+        boolean finished = to == BroadcastStatus.DONE || to == BroadcastStatus.CANCELLED;
+        String placeholders = String.join(", ", Collections.nCopies(from.length, "?"));
+        return db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE broadcast_jobs SET status=?, updated_at=?, finished_at=?
+                    WHERE id=? AND status IN (%s)
+                    """.formatted(placeholders));
+            ps.setString(1, to.name());
+            ps.setLong(2, now);
+            if (finished) ps.setLong(3, now);
+            else ps.setNull(3, Types.INTEGER);
+            ps.setLong(4, id);
+            for (int i = 0; i < from.length; i++) ps.setString(5 + i, from[i].name());
+            return ps.executeUpdate() > 0;
+        });
+    }
+
+    public void setProgressMessage(long id, int messageId) throws Exception {
+        db.write(c -> {
+            PreparedStatement ps = c.prepare("UPDATE broadcast_jobs SET progress_message_id=? WHERE id=?");
+            ps.setInt(1, messageId);
+            ps.setLong(2, id);
+            return ps.executeUpdate();
+        });
+    }
+
+    private static Job map(ResultSet rs) throws Exception {
+        int pm = rs.getInt("progress_message_id");
+        Integer progressMessageId = rs.wasNull() ? null : pm;
+        return new Job(
+                rs.getLong("id"),
+                rs.getLong("admin_chat_id"),
+                rs.getString("text"),
+                Segment.parse(rs.getString("segment")),
+                BroadcastStatus.valueOf(rs.getString("status")),
+                rs.getLong("cursor_chat_id"),
+                rs.getLong("total"),
+                rs.getLong("ok"),
+                rs.getLong("failed"),
+                rs.getLong("blocked"),
+                progressMessageId
+        );
+    }
+}
@@ -0,0 +1,191 @@
+package ru.maximalexeev.bot.db;
+
+import ru.maximalexeev.bot.db.models.UserState;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Состояние отложенных сообщений: строка (chat_id, rule_id) на каждое правило кампании.
+// next_due_at — когда отправлять (NULL — не запланировано/погашено), sent_at — когда отправлено (повторно не шлем).
+// Все выборки "что наступило" идут по частичному индексу idx_campaign_state_due.
+public class CampaignStateRepository {
+    private final Database db;
+
+    public record Due(long chatId, String ruleId, long dueAt) {}
+
+    // итог обработки пачки наступивших: что отдано на отправку (и сообщения для outbox, по одному на sent
+    // в том же порядке), что погашено, что перенесено/запланировано заново
+    public record Outcome(List<Due> sent, List<Due> cancelled, List<Due> scheduled, List<OutboxRepository.Message> messages) {}
+
+    public CampaignStateRepository(Database db) {
+        this.db = db;
+    }
+
+    // Планирует (или переносит) правила; уже отправленные не трогаем.
+    public CompletableFuture<Integer> schedule(List<Due> items) {
+        if (items.isEmpty()) return CompletableFuture.completedFuture(0);
+        return db.writeAsync(c -> upsertDue(c, items));
+    }
+
+    public CompletableFuture<Integer> suppress(long chatId, String ruleId) {
+        long now = System.currentTimeMillis();
+        return db.writeAsync(c -> {
+            PreparedStatement ps = c.prepare("""
+                    INSERT INTO campaign_state (chat_id, rule_id, next_due_at, sent_at)
+                    VALUES (?, ?, NULL, ?)
+                    ON CONFLICT(chat_id, rule_id) DO UPDATE SET next_due_at=NULL, sent_at=COALESCE(campaign_state.sent_at, excluded.sent_at)
+                    """);
+            ps.setLong(1, chatId);
+            ps.setString(2, ruleId);
+            ps.setLong(3, now);
+            return ps.executeUpdate();
+        });
+    }
+
+    // Наступившие строки, кроме тех, чей пользователь не в IDLE: они ждут без записей, пока он освободится.
+    // anytimeRules — правила, которым состояние не важно; busyBefore — срок, после которого занятые
+    // тоже возвращаются (чтобы их погасить).
+    public List<Due> listDue(long nowMs, long busyBefore, List<String> anytimeRules, int limit) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT cs.chat_id, cs.rule_id, cs.next_due_at
+                    FROM campaign_state cs
+                    LEFT JOIN users u ON u.chat_id = cs.chat_id
+                    WHERE cs.sent_at IS NULL AND cs.next_due_at IS NOT NULL AND cs.next_due_at <= ?
+                      AND (u.state IS NULL OR u.state = ? OR cs.next_due_at <= ?%s)
+                    ORDER BY cs.next_due_at
+                    LIMIT ?
+                    """.formatted(anytimeRules.isEmpty() ? ""
+                    : " OR cs.rule_id IN (" + String.join(", ", Collections.nCopies(anytimeRules.size(), "?")) + ")"));
+            int i = 1;
+            ps.setLong(i++, nowMs);
+            ps.setString(i++, UserState.IDLE.name());
+            ps.setLong(i++, busyBefore);
+            for (String ruleId : anytimeRules) ps.setString(i++, ruleId);
+            ps.setInt(i, limit);
+            List<Due> res = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) res.add(new Due(rs.getLong(1), rs.getString(2), rs.getLong(3)));
+            }
+            return res;
+        });
+    }
+
+    // Ближайший срок или Long.MAX_VALUE, если ничего не запланировано (первый элемент индекса).
+    public long nextDueAt() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT MIN(next_due_at) FROM campaign_state
+                    WHERE sent_at IS NULL AND next_due_at IS NOT NULL
+                    """);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Long.MAX_VALUE;
+                long v = rs.getLong(1);
+                return rs.wasNull() ? Long.MAX_VALUE : v;
+            }
+        });
+    }
+
+    // ближайший срок позже afterMs (наступившие, но ждущие занятых пользователей, не учитываются)
+    public long nextDueAfter(long afterMs) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT MIN(next_due_at) FROM campaign_state
+                    WHERE sent_at IS NULL AND next_due_at IS NOT NULL AND next_due_at > ?
+                    """);
+            ps.setLong(1, afterMs);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Long.MAX_VALUE;
+                long v = rs.getLong(1);
+                return rs.wasNull() ? Long.MAX_VALUE : v;
+            }
+        });
+    }
+
+    public long countScheduled() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT COUNT(*) FROM campaign_state
+                    WHERE sent_at IS NULL AND next_due_at IS NOT NULL
+                    """);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    // Вся пачка — одной командой писателя: sent_at и строки outbox фиксируются вместе.
+    // Строку, которую после выборки сбросили (reset) или погасили, не отправляем.
+    public void apply(Outcome outcome) throws Exception {
+        long now = System.currentTimeMillis();
+        db.write(c -> {
+            List<OutboxRepository.Message> messages = new ArrayList<>();
+            if (!outcome.sent().isEmpty()) {
+                PreparedStatement ps = c.prepare("""
+                        UPDATE campaign_state SET sent_at=?, next_due_at=NULL
+                        WHERE chat_id=? AND rule_id=? AND sent_at IS NULL AND next_due_at IS NOT NULL
+                        """);
+                for (Due d : outcome.sent()) {
+                    ps.setLong(1, now);
+                    ps.setLong(2, d.chatId());
+                    ps.setString(3, d.ruleId());
+                    ps.addBatch();
+                }
+                int[] updated = ps.executeBatch();
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] != 0) messages.add(outcome.messages().get(i));
+                }
+            }
+            if (!outcome.cancelled().isEmpty()) {
+                PreparedStatement ps = c.prepare("""
+                        UPDATE campaign_state SET next_due_at=NULL
+                        WHERE chat_id=? AND rule_id=? AND sent_at IS NULL
+                        """);
+                for (Due d : outcome.cancelled()) {
+                    ps.setLong(1, d.chatId());
+                    ps.setString(2, d.ruleId());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            upsertDue(c, outcome.scheduled());
+            OutboxRepository.insert(c, messages);
+            return null;
+        });
+    }
+
+    // удаляет состояние правил для чата: запланированное не уйдет, отправленное можно планировать снова
+    static void reset(SqlConn c, long chatId, List<String> ruleIds) throws Exception {
+        if (ruleIds.isEmpty()) return;
+        PreparedStatement ps = c.prepare("DELETE FROM campaign_state WHERE chat_id=? AND rule_id=?");
+        for (String ruleId : ruleIds) {
+            ps.setLong(1, chatId);
+            ps.setString(2, ruleId);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    private static int upsertDue(SqlConn c, List<Due> items) throws Exception {
+        if (items.isEmpty()) return 0;
+        PreparedStatement ps = c.prepare("""
+                INSERT INTO campaign_state (chat_id, rule_id, next_due_at, sent_at)
+                VALUES (?, ?, ?, NULL)
+                ON CONFLICT(chat_id, rule_id) DO UPDATE SET next_due_at=excluded.next_due_at
+                WHERE campaign_state.sent_at IS NULL
+                """);
+        for (Due d : items) {
+            ps.setLong(1, d.chatId());
+            ps.setString(2, d.ruleId());
+            ps.setLong(3, d.dueAt());
+            ps.addBatch();
+        }
+        int n = 0;
+        for (int r : ps.executeBatch()) n += Math.max(r, 0);
+        return n;
+    }
+}
@@ -5,94 +5,117 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.Statement;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Пул долгоживущих соединений SQLite: один писатель (SQLite все равно пишет строго по одному)
+// и несколько читателей (в WAL читатели не блокируются писателем).
+// Все записи идут через поток SqliteWriter с групповым коммитом.
 public class Database {
     private final String dbPath;
+    private final DbProfile profile;
+
+    private final SqlConn writerConn;
+    private final SqliteWriter writer;
+    private final BlockingQueue<SqlConn> readers;
+    private final List<SqlConn> all = new ArrayList<>();
+
+    public interface SqlFunction<T> {
+        T apply(SqlConn c) throws Exception;
+    }
 
-    public Database(String dbPath) {
+    public Database(String dbPath, DbProfile profile, int readerCount, int writeGroupMax, long writeGroupWindowMs) throws Exception {
         this.dbPath = dbPath;
+        this.profile = profile;
         ensureParentDir();
+
+        this.writerConn = open(false);
+        this.writer = new SqliteWriter(writerConn, writeGroupMax, writeGroupWindowMs);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        for (int i = 0; i < Math.max(1, readerCount); i++) {
+            readers.add(open(true));
+        }
     }
 
-    public Connection getConnection() throws Exception {
-        return DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    public DbProfile profile() {
+        return profile;
     }
 
-    public void migrate() throws Exception {
-        try (Connection c = getConnection(); Statement s = c.createStatement()) {
-            s.execute("PRAGMA journal_mode=WAL;");
-            s.execute("PRAGMA foreign_keys=ON;");
-
-            s.execute("""
-                    CREATE TABLE IF NOT EXISTS users (
-                      chat_id INTEGER PRIMARY KEY,
-                      user_id INTEGER,
-                      username TEXT,
-                      first_name TEXT,
-                      last_name TEXT,
-                      state TEXT NOT NULL,
-                      question_index INTEGER NOT NULL DEFAULT 0,
-                      score INTEGER NOT NULL DEFAULT 0,
-                      last_result TEXT,
-                      receipt_contact TEXT,
-
-                      upsell_sent_at INTEGER,
-                      quiz_finished_at INTEGER,
-
-                      audio_purchased_at INTEGER,
-                      system_purchased_at INTEGER,
-
-                      system_offer_5m_sent_at INTEGER,
-                      followup_audio_24h_sent_at INTEGER,
-                      followup_system_24h_sent_at INTEGER,
-
-                      system_invoice_5m_sent_at INTEGER,
-
-                      created_at INTEGER NOT NULL,
-                      updated_at INTEGER NOT NULL
-                    );
-                    """);
-
-            s.execute("""
-                    CREATE TABLE IF NOT EXISTS media_cache (
-                      media_key TEXT PRIMARY KEY,
-                      telegram_file_id TEXT NOT NULL,
-                      updated_at INTEGER NOT NULL
-                    );
-                    """);
-
-            s.execute("""
-                    CREATE TABLE IF NOT EXISTS payments (
-                      payment_id TEXT PRIMARY KEY,
-                      chat_id INTEGER NOT NULL,
-                      amount_value TEXT NOT NULL,
-                      status TEXT NOT NULL,
-                      confirmation_url TEXT,
-                      receipt_contact TEXT,
-                      delivered INTEGER NOT NULL DEFAULT 0,
-                      created_at INTEGER NOT NULL,
-                      updated_at INTEGER NOT NULL
-                    );
-                    """);
-
-            s.execute("CREATE INDEX IF NOT EXISTS idx_payments_chat_id ON payments(chat_id);");
-            s.execute("CREATE INDEX IF NOT EXISTS idx_users_state ON users(state);");
-
-            // ---- миграции для существующей БД (если колонок нет)
-            try { s.execute("ALTER TABLE users ADD COLUMN quiz_finished_at INTEGER;"); } catch (Exception ignored) {}
-            try { s.execute("ALTER TABLE users ADD COLUMN upsell_sent_at INTEGER;"); } catch (Exception ignored) {}
-
-            try { s.execute("ALTER TABLE users ADD COLUMN audio_purchased_at INTEGER;"); } catch (Exception ignored) {}
-            try { s.execute("ALTER TABLE users ADD COLUMN system_purchased_at INTEGER;"); } catch (Exception ignored) {}
-
-            try { s.execute("ALTER TABLE users ADD COLUMN system_offer_5m_sent_at INTEGER;"); } catch (Exception ignored) {}
-            try { s.execute("ALTER TABLE users ADD COLUMN followup_audio_24h_sent_at INTEGER;"); } catch (Exception ignored) {}
-            try { s.execute("ALTER TABLE users ADD COLUMN followup_system_24h_sent_at INTEGER;"); } catch (Exception ignored) {}
-
-            try { s.execute("ALTER TABLE users ADD COLUMN system_invoice_5m_sent_at INTEGER;"); } catch (Exception ignored) {}
+    public SqliteWriter.Stats writerStats() {
+        return writer.stats();
+    }
+
+    public <T> T read(SqlFunction<T> work) throws Exception {
+        SqlConn c = readers.take();
+        try {
+            return work.apply(c);
+        } finally {
+            readers.add(c);
         }
     }
 
+    // Запись с ожиданием коммита группы (durable после возврата).
+    public <T> T write(SqlFunction<T> work) throws Exception {
+        try {
+            return writeAsync(work).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception ex) throw ex;
+            throw e;
+        }
+    }
+
+    // Запись "выстрелил и забыл": future завершится после коммита группы.
+    public <T> CompletableFuture<T> writeAsync(SqlFunction<T> work) {
+        if (writer.isWriterThread()) {
+            // вложенная запись из команды писателя — выполняем сразу в текущей транзакции
+            try {
+                return CompletableFuture.completedFuture(work.apply(writerConn));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return writer.submit(work);
+    }
+
+    // Запись вне групповых транзакций (миграции, обслуживание): work сам управляет транзакцией.
+    public <T> T writeExclusive(SqlFunction<T> work) throws Exception {
+        try {
+            return writer.submitExclusive(work).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception ex) throw ex;
+            throw e;
+        }
+    }
+
+    public void close() {
+        writer.shutdown(5_000);
+        for (SqlConn c : all) c.close();
+    }
+
+    private SqlConn open(boolean readOnly) throws Exception {
+        Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        try (Statement s = c.createStatement()) {
+            for (String pragma : profile.pragmas()) s.execute(pragma);
+            if (readOnly) s.execute("PRAGMA query_only=1;");
+        }
+        SqlConn sc = new SqlConn(c);
+        all.add(sc);
+        return sc;
+    }
+
+    public void migrate() throws Exception {
+        writeExclusive(c -> {
+            Migrations.run(c.connection());
+            return null;
+        });
+    }
+
     private void ensureParentDir() {
         try {
             Path p = Path.of(dbPath).toAbsolutePath().getParent();
@@ -0,0 +1,43 @@
+package ru.maximalexeev.bot.db;
+
+import java.util.List;
+import java.util.Locale;
+
+// Набор PRAGMA, которые выставляются один раз на каждое соединение пула.
+public enum DbProfile {
+    // максимум надежности: fsync на каждый коммит
+    SAFE("FULL", -8_000, 0),
+
+    // WAL + synchronous=NORMAL: коммит без fsync, база не бьется при падении процесса
+    BALANCED("NORMAL", -32_000, 64L * 1024 * 1024),
+
+    // при отключении питания можно потерять последние коммиты (но не базу целиком)
+    FAST("OFF", -128_000, 256L * 1024 * 1024);
+
+    private final String synchronous;
+    private final int cacheSizeKb;  // отрицательное значение — размер в KiB (семантика SQLite)
+    private final long mmapSize;
+
+    DbProfile(String synchronous, int cacheSizeKb, long mmapSize) {
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+    }
+
+    public static DbProfile parse(String raw) {
+        if (raw == null || raw.isBlank()) return BALANCED;
+        return DbProfile.valueOf(raw.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public List<String> pragmas() {
+        return List.of(
+                "PRAGMA journal_mode=WAL;",
+                "PRAGMA synchronous=" + synchronous + ";",
+                "PRAGMA busy_timeout=10000;",
+                "PRAGMA cache_size=" + cacheSizeKb + ";",
+                "PRAGMA mmap_size=" + mmapSize + ";",
+                "PRAGMA temp_store=MEMORY;",
+                "PRAGMA foreign_keys=ON;"
+        );
+    }
+}
@@ -0,0 +1,133 @@
+package ru.maximalexeev.bot.db;
+
+import ru.maximalexeev.bot.db.models.DeliveryStatus;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+// Состояние выдачи оплаченного контента по платежу. step — число подтвержденных шагов:
+// после рестарта шаги до него не повторяются. DELIVERED, payments.delivered и возврат пользователя
+// в IDLE пишутся одной командой.
+public class DeliveryRepository {
+    private final Database db;
+
+    public record Delivery(String paymentId, long chatId, DeliveryStatus status, int step, int attempts) {}
+
+    public record Counts(long open, long failed) {}
+
+    public DeliveryRepository(Database db) {
+        this.db = db;
+    }
+
+    // для вызова внутри команды писателя, отмечающей покупку; повторная постановка — no-op
+    static int insert(SqlConn c, String paymentId, long chatId) throws Exception {
+        long now = System.currentTimeMillis();
+        PreparedStatement ps = c.prepare("""
+                INSERT INTO deliveries (payment_id, chat_id, status, step, attempts, created_at, updated_at)
+                VALUES (?, ?, ?, 0, 0, ?, ?)
+                ON CONFLICT(payment_id) DO NOTHING
+                """);
+        ps.setString(1, paymentId);
+        ps.setLong(2, chatId);
+        ps.setString(3, DeliveryStatus.PENDING.name());
+        ps.setLong(4, now);
+        ps.setLong(5, now);
+        return ps.executeUpdate();
+    }
+
+    public Delivery get(String paymentId) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT * FROM deliveries WHERE payment_id=?");
+            ps.setString(1, paymentId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? map(rs) : null;
+            }
+        });
+    }
+
+    public List<Delivery> listOpen() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT * FROM deliveries
+                    WHERE status IN ('PENDING', 'UPLOADING')
+                    ORDER BY created_at
+                    """);
+            List<Delivery> res = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) res.add(map(rs));
+            }
+            return res;
+        });
+    }
+
+    // шаг step подтвержден (или выдача только начинается — step=текущий)
+    public void checkpoint(String paymentId, int step) throws Exception {
+        long now = System.currentTimeMillis();
+        db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE deliveries SET status=?, step=?, updated_at=?
+                    WHERE payment_id=? AND status IN ('PENDING', 'UPLOADING')
+                    """);
+            ps.setString(1, DeliveryStatus.UPLOADING.name());
+            ps.setInt(2, step);
+            ps.setLong(3, now);
+            ps.setString(4, paymentId);
+            return ps.executeUpdate();
+        });
+    }
+
+    // Завершение выдачи как переход платежа для UserRepository.markPaymentDelivered: DELIVERED,
+    // payments.delivered и состояние пользователя — одна команда писателя.
+    public Database.SqlFunction<Boolean> completed(String paymentId, int steps) {
+        long now = System.currentTimeMillis();
+        return c -> {
+            PreparedStatement ps = c.prepare("UPDATE deliveries SET status=?, step=?, last_error=NULL, updated_at=? WHERE payment_id=?");
+            ps.setString(1, DeliveryStatus.DELIVERED.name());
+            ps.setInt(2, steps);
+            ps.setLong(3, now);
+            ps.setString(4, paymentId);
+            ps.executeUpdate();
+            return PaymentRepository.markDelivered(c, paymentId, now);
+        };
+    }
+
+    // неудачная попытка; last=true — попытки кончились (FAILED)
+    public void failed(String paymentId, String error, boolean last) throws Exception {
+        long now = System.currentTimeMillis();
+        db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE deliveries SET attempts=attempts+1, last_error=?, status=?, updated_at=?
+                    WHERE payment_id=?
+                    """);
+            ps.setString(1, error);
+            ps.setString(2, (last ? DeliveryStatus.FAILED : DeliveryStatus.UPLOADING).name());
+            ps.setLong(3, now);
+            ps.setString(4, paymentId);
+            return ps.executeUpdate();
+        });
+    }
+
+    public Counts counts() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT (SELECT COUNT(*) FROM deliveries WHERE status IN ('PENDING', 'UPLOADING')),
+                           (SELECT COUNT(*) FROM deliveries WHERE status='FAILED')
+                    """);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new Counts(rs.getLong(1), rs.getLong(2)) : new Counts(0, 0);
+            }
+        });
+    }
+
+    private static Delivery map(ResultSet rs) throws Exception {
+        return new Delivery(
+                rs.getString("payment_id"),
+                rs.getLong("chat_id"),
+                DeliveryStatus.valueOf(rs.getString("status")),
+                rs.getInt("step"),
+                rs.getInt("attempts")
+        );
+    }
+}
@@ -0,0 +1,374 @@
+package ru.maximalexeev.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Версионные миграции схемы по PRAGMA user_version.
+// На актуальной базе старт стоит одно чтение pragma; иначе применяются только недостающие шаги,
+// каждый в своей транзакции вместе с повышением user_version.
+// Новый шаг — новый элемент в конце STEPS, уже выпущенные шаги не меняем.
+final class Migrations {
+    private static final Logger log = LoggerFactory.getLogger(Migrations.class);
+
+    interface Step {
+        void apply(Connection c) throws Exception;
+    }
+
+    record Migration(int version, String name, Step step) {}
+
+    static final List<Migration> STEPS = List.of(
+            new Migration(1, "baseline", Migrations::baseline),
+            new Migration(2, "campaign due indexes", Migrations::campaignDueIndexes),
+            new Migration(3, "campaign_state", Migrations::campaignState),
+            new Migration(4, "broadcast_jobs", Migrations::broadcastJobs),
+            new Migration(5, "broadcast segments", Migrations::broadcastSegments),
+            new Migration(6, "blocked users", Migrations::blockedUsers),
+            new Migration(7, "outbox", Migrations::outbox),
+            new Migration(8, "deliveries", Migrations::deliveries),
+            new Migration(9, "media cache by content hash", Migrations::mediaCacheByHash),
+            new Migration(10, "users last seen", Migrations::usersLastSeen)
+    );
+
+    private Migrations() {}
+
+    static void run(Connection c) throws Exception {
+        int current = userVersion(c);
+        int latest = STEPS.get(STEPS.size() - 1).version();
+        if (current >= latest) return;
+
+        log.info("DB schema v{} -> v{}", current, latest);
+        for (Migration m : STEPS) {
+            if (m.version() <= current) continue;
+
+            long t0 = System.nanoTime();
+            c.setAutoCommit(false);
+            try (Statement s = c.createStatement()) {
+                m.step().apply(c);
+                s.execute("PRAGMA user_version=" + m.version() + ";");
+                c.commit();
+            } catch (Exception e) {
+                try { c.rollback(); } catch (Exception ignored) {}
+                throw new IllegalStateException("DB migration v" + m.version() + " (" + m.name() + ") failed", e);
+            } finally {
+                c.setAutoCommit(true);
+            }
+            log.info("DB migration v{} ({}) applied in {} ms", m.version(), m.name(), (System.nanoTime() - t0) / 1_000_000);
+        }
+    }
+
+    static int userVersion(Connection c) throws Exception {
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("PRAGMA user_version;")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // ---- v1: исходная схема. Для баз, созданных до версионирования (user_version=0),
+    // добавляет недостающие колонки по PRAGMA table_info вместо ALTER с подавлением ошибок.
+    private static void baseline(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS users (
+                      chat_id INTEGER PRIMARY KEY,
+                      user_id INTEGER,
+                      username TEXT,
+                      first_name TEXT,
+                      last_name TEXT,
+                      state TEXT NOT NULL,
+                      question_index INTEGER NOT NULL DEFAULT 0,
+                      score INTEGER NOT NULL DEFAULT 0,
+                      last_result TEXT,
+                      receipt_contact TEXT,
+
+                      upsell_sent_at INTEGER,
+                      quiz_finished_at INTEGER,
+
+                      audio_purchased_at INTEGER,
+                      system_purchased_at INTEGER,
+
+                      system_offer_5m_sent_at INTEGER,
+                      followup_audio_24h_sent_at INTEGER,
+                      followup_system_24h_sent_at INTEGER,
+
+                      system_invoice_5m_sent_at INTEGER,
+
+                      created_at INTEGER NOT NULL,
+                      updated_at INTEGER NOT NULL
+                    );
+                    """);
+
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS media_cache (
+                      media_key TEXT PRIMARY KEY,
+                      telegram_file_id TEXT NOT NULL,
+                      updated_at INTEGER NOT NULL
+                    );
+                    """);
+
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS payments (
+                      payment_id TEXT PRIMARY KEY,
+                      chat_id INTEGER NOT NULL,
+                      amount_value TEXT NOT NULL,
+                      status TEXT NOT NULL,
+                      confirmation_url TEXT,
+                      receipt_contact TEXT,
+                      delivered INTEGER NOT NULL DEFAULT 0,
+                      created_at INTEGER NOT NULL,
+                      updated_at INTEGER NOT NULL
+                    );
+                    """);
+
+            s.execute("CREATE INDEX IF NOT EXISTS idx_payments_chat_id ON payments(chat_id);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_state ON users(state);");
+        }
+
+        addColumnIfMissing(c, "users", "quiz_finished_at", "INTEGER");
+        addColumnIfMissing(c, "users", "upsell_sent_at", "INTEGER");
+        addColumnIfMissing(c, "users", "audio_purchased_at", "INTEGER");
+        addColumnIfMissing(c, "users", "system_purchased_at", "INTEGER");
+        addColumnIfMissing(c, "users", "system_offer_5m_sent_at", "INTEGER");
+        addColumnIfMissing(c, "users", "followup_audio_24h_sent_at", "INTEGER");
+        addColumnIfMissing(c, "users", "followup_system_24h_sent_at", "INTEGER");
+        addColumnIfMissing(c, "users", "system_invoice_5m_sent_at", "INTEGER");
+    }
+
+    // ---- v2: частичные индексы под выборки кампаний (в индекс попадают только "еще не отправленные")
+    // и индекс успешных оплат по префиксу payload для массовой сверки покупок.
+    private static void campaignDueIndexes(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_users_offer5m_due ON users(state, audio_purchased_at)
+                    WHERE system_purchased_at IS NULL AND system_offer_5m_sent_at IS NULL;
+                    """);
+            s.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_users_invoice5m_due ON users(state, system_offer_5m_sent_at)
+                    WHERE system_purchased_at IS NULL AND system_invoice_5m_sent_at IS NULL;
+                    """);
+            s.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_users_audio24h_due ON users(state, quiz_finished_at)
+                    WHERE audio_purchased_at IS NULL AND followup_audio_24h_sent_at IS NULL;
+                    """);
+            s.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_users_system24h_due ON users(state, audio_purchased_at)
+                    WHERE system_purchased_at IS NULL AND followup_system_24h_sent_at IS NULL;
+                    """);
+            s.execute("CREATE INDEX IF NOT EXISTS idx_payments_status_id ON payments(status, payment_id);");
+        }
+    }
+
+    // ---- v3: состояние отложенных сообщений в отдельной таблице (правило = строка, а не колонка в users).
+    // Переносим то, что было в колонках users; задержки — те, что действовали на момент миграции.
+    // Колонки *_sent_at в users остаются как история, частичные индексы v2 по ним больше не нужны.
+    private static void campaignState(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS campaign_state (
+                      chat_id INTEGER NOT NULL,
+                      rule_id TEXT NOT NULL,
+                      next_due_at INTEGER,
+                      sent_at INTEGER,
+                      PRIMARY KEY (chat_id, rule_id)
+                    ) WITHOUT ROWID;
+                    """);
+            s.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_campaign_state_due ON campaign_state(next_due_at)
+                    WHERE sent_at IS NULL AND next_due_at IS NOT NULL;
+                    """);
+
+            backfillRule(s, "system_offer_5m", "audio_purchased_at", 5L * 60_000, "system_offer_5m_sent_at", "system_purchased_at");
+            backfillRule(s, "system_invoice_5m", "system_offer_5m_sent_at", 5L * 60_000, "system_invoice_5m_sent_at", "system_purchased_at");
+            backfillRule(s, "followup_audio_24h", "quiz_finished_at", 24L * 3_600_000, "followup_audio_24h_sent_at", "audio_purchased_at");
+            backfillRule(s, "followup_system_24h", "audio_purchased_at", 24L * 3_600_000, "followup_system_24h_sent_at", "system_purchased_at");
+
+            s.execute("DROP INDEX IF EXISTS idx_users_offer5m_due;");
+            s.execute("DROP INDEX IF EXISTS idx_users_invoice5m_due;");
+            s.execute("DROP INDEX IF EXISTS idx_users_audio24h_due;");
+            s.execute("DROP INDEX IF EXISTS idx_users_system24h_due;");
+        }
+    }
+
+    // отправленное — sent_at; ожидающее — next_due_at; погашенное покупкой — обе NULL
+    private static void backfillRule(Statement s, String ruleId, String baseColumn, long delayMs,
+                                     String sentColumn, String suppressedBy) throws Exception {
+        s.execute("""
+                INSERT OR IGNORE INTO campaign_state (chat_id, rule_id, next_due_at, sent_at)
+                SELECT chat_id, '%1$s',
+                       CASE WHEN %4$s IS NULL AND %5$s IS NULL THEN %2$s + %3$d END,
+                       %4$s
+                FROM users
+                WHERE %2$s IS NOT NULL;
+                """.formatted(ruleId, baseColumn, delayMs, sentColumn, suppressedBy));
+    }
+
+    // ---- v4: рассылки как задания: курсор по chat_id (keyset) и счетчики, чтобы продолжать после рестарта
+    private static void broadcastJobs(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS broadcast_jobs (
+                      id INTEGER PRIMARY KEY AUTOINCREMENT,
+                      admin_chat_id INTEGER NOT NULL,
+                      text TEXT NOT NULL,
+                      status TEXT NOT NULL,
+                      cursor_chat_id INTEGER NOT NULL DEFAULT -9223372036854775808,
+                      total INTEGER NOT NULL DEFAULT 0,
+                      ok INTEGER NOT NULL DEFAULT 0,
+                      failed INTEGER NOT NULL DEFAULT 0,
+                      blocked INTEGER NOT NULL DEFAULT 0,
+                      progress_message_id INTEGER,
+                      created_at INTEGER NOT NULL,
+                      updated_at INTEGER NOT NULL,
+                      finished_at INTEGER
+                    );
+                    """);
+        }
+    }
+
+    // ---- v5: сегменты рассылок. Индексы под фильтры сегментов; (last_result, chat_id) — сразу
+    // keyset-страница внутри результата теста без сортировки.
+    private static void broadcastSegments(Connection c) throws Exception {
+        addColumnIfMissing(c, "broadcast_jobs", "segment", "TEXT NOT NULL DEFAULT ''");
+        try (Statement s = c.createStatement()) {
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_result_chat ON users(last_result, chat_id);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_audio_purchased ON users(audio_purchased_at);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_system_purchased ON users(system_purchased_at);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_quiz_finished ON users(quiz_finished_at);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_updated ON users(updated_at);");
+        }
+    }
+
+    // ---- v6: users.blocked_at — чат недоступен (бот заблокирован / чат удален).
+    // Индексы сегментов пересобираем частичными WHERE blocked_at IS NULL: заблокированные выпадают
+    // из выборок рассылок прямо в индексе. blocked_at последним в ключе — иначе SQLite не считает
+    // частичный индекс покрывающим и ходит в таблицу проверить условие.
+    // idx_users_reachable — keyset по chat_id без фильтров.
+    private static void blockedUsers(Connection c) throws Exception {
+        addColumnIfMissing(c, "users", "blocked_at", "INTEGER");
+        rebuildIndex(c, "idx_users_result_chat",
+                "CREATE INDEX idx_users_result_chat ON users(last_result, chat_id, blocked_at) WHERE blocked_at IS NULL;");
+        rebuildIndex(c, "idx_users_audio_purchased",
+                "CREATE INDEX idx_users_audio_purchased ON users(audio_purchased_at, blocked_at) WHERE blocked_at IS NULL;");
+        rebuildIndex(c, "idx_users_system_purchased",
+                "CREATE INDEX idx_users_system_purchased ON users(system_purchased_at, blocked_at) WHERE blocked_at IS NULL;");
+        rebuildIndex(c, "idx_users_quiz_finished",
+                "CREATE INDEX idx_users_quiz_finished ON users(quiz_finished_at, blocked_at) WHERE blocked_at IS NULL;");
+        rebuildIndex(c, "idx_users_updated",
+                "CREATE INDEX idx_users_updated ON users(updated_at, blocked_at) WHERE blocked_at IS NULL;");
+        try (Statement s = c.createStatement()) {
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_reachable ON users(chat_id, blocked_at) WHERE blocked_at IS NULL;");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_blocked ON users(blocked_at) WHERE blocked_at IS NOT NULL;");
+        }
+    }
+
+    // ---- v7: outbox — сообщения, поставленные в одной транзакции с изменением состояния.
+    private static void outbox(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS outbox (
+                      id INTEGER PRIMARY KEY AUTOINCREMENT,
+                      idem_key TEXT NOT NULL UNIQUE,
+                      chat_id INTEGER NOT NULL,
+                      kind TEXT NOT NULL,
+                      ref TEXT,
+                      status TEXT NOT NULL,
+                      attempts INTEGER NOT NULL DEFAULT 0,
+                      next_attempt_at INTEGER,
+                      last_error TEXT,
+                      created_at INTEGER NOT NULL,
+                      updated_at INTEGER NOT NULL,
+                      sent_at INTEGER
+                    );
+                    """);
+            s.execute("CREATE INDEX IF NOT EXISTS idx_outbox_due ON outbox(next_attempt_at) WHERE status='PENDING';");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_outbox_dead ON outbox(id) WHERE status='DEAD';");
+        }
+    }
+
+    // ---- v8: выдача оплаченного контента по шагам. step — сколько шагов уже подтверждено,
+    // после рестарта продолжаем с него. Незавершенные — по частичному индексу.
+    private static void deliveries(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("""
+                    CREATE TABLE IF NOT EXISTS deliveries (
+                      payment_id TEXT PRIMARY KEY,
+                      chat_id INTEGER NOT NULL,
+                      status TEXT NOT NULL,
+                      step INTEGER NOT NULL DEFAULT 0,
+                      attempts INTEGER NOT NULL DEFAULT 0,
+                      last_error TEXT,
+                      created_at INTEGER NOT NULL,
+                      updated_at INTEGER NOT NULL
+                    );
+                    """);
+            s.execute("CREATE INDEX IF NOT EXISTS idx_deliveries_open ON deliveries(created_at) WHERE status IN ('PENDING', 'UPLOADING');");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_deliveries_failed ON deliveries(created_at) WHERE status='FAILED';");
+        }
+    }
+
+    // ---- v9: ключи media_cache — "audio:<sha256>" вместо имени файла: замена файла не отдает старый file_id.
+    // Строки по именам больше никто не читает — удаляем, прогрев зальет файлы под новыми ключами.
+    private static void mediaCacheByHash(Connection c) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("DELETE FROM media_cache WHERE length(media_key) - instr(media_key, ':') <> 64;");
+        }
+    }
+
+    // ---- v10: users.last_seen_at — последний апдейт от пользователя (с точностью до часа), для сегмента
+    // "активны за N дней". updated_at для этого не годится: его двигают и фоновые записи (сверка покупок),
+    // а простые сообщения/клики без изменения профиля его не трогают. Начальное значение — updated_at;
+    // idx_users_updated нужен был только сегменту.
+    private static void usersLastSeen(Connection c) throws Exception {
+        addColumnIfMissing(c, "users", "last_seen_at", "INTEGER");
+        try (Statement s = c.createStatement()) {
+            s.execute("UPDATE users SET last_seen_at = updated_at WHERE last_seen_at IS NULL;");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_users_last_seen ON users(last_seen_at, blocked_at) WHERE blocked_at IS NULL;");
+            s.execute("DROP INDEX IF EXISTS idx_users_updated;");
+        }
+    }
+
+    // =========================
+    // Helpers для шагов
+    // =========================
+
+    static Set<String> columns(Connection c, String table) throws Exception {
+        Set<String> cols = new HashSet<>();
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("PRAGMA table_info(" + table + ");")) {
+            while (rs.next()) cols.add(rs.getString("name"));
+        }
+        return cols;
+    }
+
+    static void addColumnIfMissing(Connection c, String table, String column, String type) throws Exception {
+        if (columns(c, table).contains(column)) return;
+        try (Statement s = c.createStatement()) {
+            s.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
+        }
+    }
+
+    // Пересборка таблицы (то, что ALTER TABLE в SQLite не умеет: смена типов, ограничений, удаление колонок):
+    // создаем новую таблицу, копируем columnList, меняем местами и заново создаем индексы.
+    // newTableDdl должен создавать таблицу с именем "<table>_new".
+    static void rebuildTable(Connection c, String table, String newTableDdl, String columnList, List<String> indexDdl) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("DROP TABLE IF EXISTS " + table + "_new;");
+            s.execute(newTableDdl);
+            s.execute("INSERT INTO " + table + "_new (" + columnList + ") SELECT " + columnList + " FROM " + table + ";");
+            s.execute("DROP TABLE " + table + ";");
+            s.execute("ALTER TABLE " + table + "_new RENAME TO " + table + ";");
+            for (String ddl : indexDdl) s.execute(ddl);
+        }
+    }
+
+    static void rebuildIndex(Connection c, String indexName, String indexDdl) throws Exception {
+        try (Statement s = c.createStatement()) {
+            s.execute("DROP INDEX IF EXISTS " + indexName + ";");
+            s.execute(indexDdl);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ru.maximalexeev.bot.db;
+
+import ru.maximalexeev.bot.db.models.OutboxStatus;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Исходящие сообщения, записанные вместе с изменением состояния (в одной команде писателя).
+// idem_key уникален: повторная постановка того же сообщения — no-op, поэтому дублей не будет,
+// даже если событие пришло дважды. Ожидающие выбираются по частичному индексу idx_outbox_due.
+public class OutboxRepository {
+    private final Database db;
+
+    // новое сообщение: kind — кто его отправляет, ref — доп. ссылка (например, payment_id)
+    public record Message(String idemKey, long chatId, String kind, String ref) {}
+
+    public record Entry(long id, String idemKey, long chatId, String kind, String ref, int attempts) {}
+
+    // итог попытки: status PENDING — повторить в nextAttemptAt
+    public record Result(long id, OutboxStatus status, long nextAttemptAt, String error) {}
+
+    public record Counts(long pending, long dead) {}
+
+    public OutboxRepository(Database db) {
+        this.db = db;
+    }
+
+    public CompletableFuture<Integer> enqueue(List<Message> messages) {
+        if (messages.isEmpty()) return CompletableFuture.completedFuture(0);
+        return db.writeAsync(c -> insert(c, messages));
+    }
+
+    // для вызова внутри чужой команды писателя — вместе с изменением состояния
+    static int insert(SqlConn c, List<Message> messages) throws Exception {
+        if (messages.isEmpty()) return 0;
+        long now = System.currentTimeMillis();
+        PreparedStatement ps = c.prepare("""
+                INSERT INTO outbox (idem_key, chat_id, kind, ref, status, attempts, next_attempt_at, created_at, updated_at)
+                VALUES (?, ?, ?, ?, ?, 0, ?, ?, ?)
+                ON CONFLICT(idem_key) DO NOTHING
+                """);
+        for (Message m : messages) {
+            ps.setString(1, m.idemKey());
+            ps.setLong(2, m.chatId());
+            ps.setString(3, m.kind());
+            ps.setString(4, m.ref());
+            ps.setString(5, OutboxStatus.PENDING.name());
+            ps.setLong(6, now);
+            ps.setLong(7, now);
+            ps.setLong(8, now);
+            ps.addBatch();
+        }
+        int n = 0;
+        for (int r : ps.executeBatch()) n += Math.max(r, 0);
+        return n;
+    }
+
+    public List<Entry> listDue(long nowMs, int limit) throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT id, idem_key, chat_id, kind, ref, attempts
+                    FROM outbox
+                    WHERE status='PENDING' AND next_attempt_at <= ?
+                    ORDER BY next_attempt_at
+                    LIMIT ?
+                    """);
+            ps.setLong(1, nowMs);
+            ps.setInt(2, limit);
+            List<Entry> res = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    res.add(new Entry(rs.getLong(1), rs.getString(2), rs.getLong(3), rs.getString(4), rs.getString(5), rs.getInt(6)));
+                }
+            }
+            return res;
+        });
+    }
+
+    // Ближайшая попытка или Long.MAX_VALUE, если ждать нечего.
+    public long nextAttemptAt() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT MIN(next_attempt_at) FROM outbox WHERE status='PENDING'");
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Long.MAX_VALUE;
+                long v = rs.getLong(1);
+                return rs.wasNull() ? Long.MAX_VALUE : v;
+            }
+        });
+    }
+
+    // Итоги пачки — одной командой писателя. Каждая запись итога — это попытка (attempts+1).
+    // Результат одной попытки — сразу после нее: записи соседних отправок сливаются групповым коммитом,
+    // а падение посреди пачки не приведет к повтору уже подтвержденных. future — после коммита.
+    public CompletableFuture<Void> record(Result r) {
+        long now = System.currentTimeMillis();
+        return db.writeAsync(c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE outbox
+                    SET status=?, attempts=attempts+1, next_attempt_at=?, last_error=?, updated_at=?,
+                        sent_at=CASE WHEN ?='SENT' THEN ? ELSE sent_at END
+                    WHERE id=? AND status='PENDING'
+                    """);
+            ps.setString(1, r.status().name());
+            if (r.status() == OutboxStatus.PENDING) ps.setLong(2, r.nextAttemptAt());
+            else ps.setNull(2, Types.INTEGER);
+            ps.setString(3, r.error());
+            ps.setLong(4, now);
+            ps.setString(5, r.status().name());
+            ps.setLong(6, now);
+            ps.setLong(7, r.id());
+            ps.executeUpdate();
+            return null;
+        });
+    }
+
+    public Counts counts() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT (SELECT COUNT(*) FROM outbox WHERE status='PENDING'),
+                           (SELECT COUNT(*) FROM outbox WHERE status='DEAD')
+                    """);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new Counts(rs.getLong(1), rs.getLong(2)) : new Counts(0, 0);
+            }
+        });
+    }
+}
@@ -1,14 +1,34 @@
 package ru.maximalexeev.bot.db;
 
 import ru.maximalexeev.bot.db.models.PaymentStatus;
+import ru.maximalexeev.bot.util.LongLongMap;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PaymentRepository {
+    // открытые инвойсы в памяти держим сутки; старше — проверяются через БД
+    private static final long OPEN_INVOICE_TTL_MS = 24 * 3_600_000L;
+    private static final long OPEN_INVOICE_EXPIRE_EVERY_MS = 10 * 60_000L;
+
     private final Database db;
 
+    // Открытые инвойсы (PENDING, не выдан): 64-битный хэш payload -> created_at. Только подмножество того,
+    // что подтвердила бы БД: добавляем при создании, убираем при оплате/выдаче и по сроку. Поэтому попадание —
+    // ответ на pre-checkout без SQLite, а промах (просроченный, после рестарта) просто проверяется в БД.
+    private final LongLongMap openInvoices = new LongLongMap(1024);
+    private final AtomicLong openHits = new AtomicLong();
+    private final AtomicLong openMisses = new AtomicLong();
+    private volatile long openExpiredAt;
+
+    public record OpenInvoiceStats(int size, long hits, long misses) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+    }
+
     public record PaymentRow(
             String paymentId,
             long chatId,
@@ -25,11 +45,11 @@ public class PaymentRepository {
 
     public void create(String paymentId, long chatId, String amountValue, PaymentStatus status, String confirmationUrl, String receiptContact) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 INSERT INTO payments(payment_id, chat_id, amount_value, status, confirmation_url, receipt_contact, delivered, created_at, updated_at)
-                 VALUES (?, ?, ?, ?, ?, ?, 0, ?, ?)
-                 """)) {
+        db.write(c -> {
+            PreparedStatement ps = c.prepare("""
+                    INSERT INTO payments(payment_id, chat_id, amount_value, status, confirmation_url, receipt_contact, delivered, created_at, updated_at)
+                    VALUES (?, ?, ?, ?, ?, ?, 0, ?, ?)
+                    """);
             ps.setString(1, paymentId);
             ps.setLong(2, chatId);
             ps.setString(3, amountValue);
@@ -38,97 +58,152 @@ public class PaymentRepository {
             ps.setString(6, receiptContact);
             ps.setLong(7, now);
             ps.setLong(8, now);
-            ps.executeUpdate();
+            return ps.executeUpdate();
+        });
+        if (status == PaymentStatus.PENDING) {
+            openInvoices.put(hash(paymentId), now);
+            if (now - openExpiredAt >= OPEN_INVOICE_EXPIRE_EVERY_MS) expireOpenInvoices(now);
         }
     }
 
+    // индекс открытых инвойсов при старте: неоплаченные за последние OPEN_INVOICE_TTL_MS
+    public int loadOpenInvoices() throws Exception {
+        long since = System.currentTimeMillis() - OPEN_INVOICE_TTL_MS;
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT payment_id, created_at
+                    FROM payments
+                    WHERE status=? AND delivered=0 AND created_at>=?
+                    """);
+            ps.setString(1, PaymentStatus.PENDING.name());
+            ps.setLong(2, since);
+            int n = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    openInvoices.put(hash(rs.getString(1)), rs.getLong(2));
+                    n++;
+                }
+            }
+            return n;
+        });
+    }
+
+    // можно ли принять оплату: инвойс есть и еще не оплачен (повторную оплату переход paid все равно
+    // не применит — деньги спишутся без выдачи). Из памяти, при промахе — из БД
+    public boolean isOpenInvoice(String paymentId) throws Exception {
+        if (openInvoices.containsKey(hash(paymentId))) {
+            openHits.incrementAndGet();
+            return true;
+        }
+        openMisses.incrementAndGet();
+        PaymentRow row = get(paymentId);
+        return row != null && row.status() == PaymentStatus.PENDING && !row.delivered();
+    }
+
+    public OpenInvoiceStats openInvoiceStats() {
+        return new OpenInvoiceStats(openInvoices.size(), openHits.get(), openMisses.get());
+    }
+
+    private void expireOpenInvoices(long now) {
+        openExpiredAt = now;
+        openInvoices.removeValuesBelow(now - OPEN_INVOICE_TTL_MS);
+    }
+
     public PaymentRow get(String paymentId) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT * FROM payments WHERE payment_id=?")) {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT * FROM payments WHERE payment_id=?");
             ps.setString(1, paymentId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (!rs.next()) return null;
                 return map(rs);
             }
-        }
+        });
     }
 
-    public void updateStatus(String paymentId, PaymentStatus status) throws Exception {
+    // Переходы платежа:  PENDING, не выдан --paid--> SUCCEEDED, не выдан --delivered--> SUCCEEDED, выдан.
+    // Каждый — один UPDATE с проверкой текущих status/delivered (compare-and-set), выполняется внутри команды
+    // писателя вместе с изменениями пользователя (UserRepository.mark*Paid / markPaymentDelivered).
+    // false — переход уже сделан или невозможен: повторный successful_payment ничего не меняет.
+
+    public Database.SqlFunction<Boolean> paid(String paymentId, String receiptContact) {
+        // до записи: промах уйдет в БД, а та до коммита еще отвечает по-старому
+        openInvoices.remove(hash(paymentId));
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE payments SET status=?, updated_at=? WHERE payment_id=?")) {
-            ps.setString(1, status.name());
-            ps.setLong(2, now);
-            ps.setString(3, paymentId);
-            ps.executeUpdate();
-        }
+        return c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE payments
+                    SET status=?, receipt_contact=COALESCE(?, receipt_contact), updated_at=?
+                    WHERE payment_id=? AND status=? AND delivered=0
+                    """);
+            ps.setString(1, PaymentStatus.SUCCEEDED.name());
+            ps.setString(2, receiptContact);
+            ps.setLong(3, now);
+            ps.setString(4, paymentId);
+            ps.setString(5, PaymentStatus.PENDING.name());
+            return ps.executeUpdate() == 1;
+        };
     }
 
-    public void updateReceiptContact(String paymentId, String receiptContact) throws Exception {
+    public Database.SqlFunction<Boolean> delivered(String paymentId) {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE payments SET receipt_contact=?, updated_at=? WHERE payment_id=?")) {
-            ps.setString(1, receiptContact);
-            ps.setLong(2, now);
-            ps.setString(3, paymentId);
-            ps.executeUpdate();
-        }
+        return c -> markDelivered(c, paymentId, now);
     }
 
-    public void markDelivered(String paymentId) throws Exception {
-        long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE payments SET delivered=1, updated_at=? WHERE payment_id=?")) {
-            ps.setLong(1, now);
-            ps.setString(2, paymentId);
-            ps.executeUpdate();
-        }
+    static boolean markDelivered(SqlConn c, String paymentId, long now) throws Exception {
+        PreparedStatement ps = c.prepare("""
+                UPDATE payments
+                SET delivered=1, updated_at=?
+                WHERE payment_id=? AND status=? AND delivered=0
+                """);
+        ps.setLong(1, now);
+        ps.setString(2, paymentId);
+        ps.setString(3, PaymentStatus.SUCCEEDED.name());
+        return ps.executeUpdate() == 1;
     }
 
     public long countSucceeded() throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) AS c FROM payments WHERE status=?");
-        ) {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT COUNT(*) AS c FROM payments WHERE status=?");
             ps.setString(1, PaymentStatus.SUCCEEDED.name());
             try (ResultSet rs = ps.executeQuery()) {
                 return rs.next() ? rs.getLong("c") : 0;
             }
-        }
+        });
     }
 
     public boolean existsForChatAfter(long chatId, long sinceMs) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT 1
-                 FROM payments
-                 WHERE chat_id=? AND created_at>=?
-                 LIMIT 1
-                 """)) {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT 1
+                    FROM payments
+                    WHERE chat_id=? AND created_at>=?
+                    LIMIT 1
+                    """);
             ps.setLong(1, chatId);
             ps.setLong(2, sinceMs);
             try (ResultSet rs = ps.executeQuery()) {
                 return rs.next();
             }
-        }
+        });
     }
 
     public boolean existsSucceededByPrefix(long chatId, String payloadPrefix) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT 1
-                 FROM payments
-                 WHERE chat_id=?
-                   AND status=?
-                   AND payment_id LIKE ?
-                 LIMIT 1
-                 """)) {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("""
+                    SELECT 1
+                    FROM payments
+                    WHERE chat_id=?
+                      AND status=?
+                      AND payment_id LIKE ?
+                    LIMIT 1
+                    """);
             ps.setLong(1, chatId);
             ps.setString(2, PaymentStatus.SUCCEEDED.name());
             ps.setString(3, payloadPrefix + "%");
             try (ResultSet rs = ps.executeQuery()) {
                 return rs.next();
             }
-        }
+        });
     }
 
     private PaymentRow map(ResultSet rs) throws Exception {
@@ -142,4 +217,14 @@ public class PaymentRepository {
                 rs.getInt("delivered") == 1
         );
     }
-}
\ No newline at end of file
+
+    // FNV-1a 64: случайное совпадение с открытым инвойсом при таком числе платежей пренебрежимо маловероятно
+    private static long hash(String paymentId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < paymentId.length(); i++) {
+            h ^= paymentId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
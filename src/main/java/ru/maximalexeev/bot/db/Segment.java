@@ -0,0 +1,117 @@
+package ru.maximalexeev.bot.db;
+
+import ru.maximalexeev.bot.db.models.QuizResult;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Аудитория рассылки: фильтры по users. null / ANY — без фильтра. Заблокировавшие бота не входят никогда.
+// Хранится в broadcast_jobs.segment строкой (encode/parse), чтобы задание продолжалось с тем же фильтром.
+public record Segment(QuizResult lastResult, Purchase purchase, Quiz quiz, Integer activeDays) {
+
+    public enum Purchase {
+        ANY("любые"),
+        NONE("ничего не купили"),
+        AUDIO_NOT_SYSTEM("аудио без системы"),
+        NOT_SYSTEM("без системы"),
+        SYSTEM("купили систему");
+
+        public final String title;
+
+        Purchase(String title) {
+            this.title = title;
+        }
+    }
+
+    public enum Quiz {
+        ANY("любой"),
+        FINISHED("пройден"),
+        NOT_FINISHED("не пройден");
+
+        public final String title;
+
+        Quiz(String title) {
+            this.title = title;
+        }
+    }
+
+    public static final Segment ALL = new Segment(null, Purchase.ANY, Quiz.ANY, null);
+
+    public boolean isAll() {
+        return ALL.equals(this);
+    }
+
+    public Segment withLastResult(QuizResult v) { return new Segment(v, purchase, quiz, activeDays); }
+    public Segment withPurchase(Purchase v) { return new Segment(lastResult, v, quiz, activeDays); }
+    public Segment withQuiz(Quiz v) { return new Segment(lastResult, purchase, v, activeDays); }
+    public Segment withActiveDays(Integer v) { return new Segment(lastResult, purchase, quiz, v); }
+
+    // "r=RISK;p=NOT_SYSTEM;q=FINISHED;a=7" (пустые фильтры не пишем)
+    public String encode() {
+        List<String> parts = new ArrayList<>();
+        if (lastResult != null) parts.add("r=" + lastResult.name());
+        if (purchase != Purchase.ANY) parts.add("p=" + purchase.name());
+        if (quiz != Quiz.ANY) parts.add("q=" + quiz.name());
+        if (activeDays != null) parts.add("a=" + activeDays);
+        return String.join(";", parts);
+    }
+
+    public static Segment parse(String s) {
+        Segment seg = ALL;
+        if (s == null || s.isBlank()) return seg;
+        for (String part : s.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq < 0) continue;
+            String k = part.substring(0, eq);
+            String v = part.substring(eq + 1);
+            seg = switch (k) {
+                case "r" -> seg.withLastResult(QuizResult.valueOf(v));
+                case "p" -> seg.withPurchase(Purchase.valueOf(v));
+                case "q" -> seg.withQuiz(Quiz.valueOf(v));
+                case "a" -> seg.withActiveDays(Integer.parseInt(v));
+                default -> seg;
+            };
+        }
+        return seg;
+    }
+
+    // условия для WHERE (без ведущего AND); blocked_at IS NULL нужен и для частичных индексов users
+    String sql() {
+        List<String> where = new ArrayList<>();
+        where.add("blocked_at IS NULL");
+        if (lastResult != null) where.add("last_result = ?");
+        switch (purchase) {
+            case NONE -> where.add("audio_purchased_at IS NULL AND system_purchased_at IS NULL");
+            case AUDIO_NOT_SYSTEM -> where.add("audio_purchased_at IS NOT NULL AND system_purchased_at IS NULL");
+            case NOT_SYSTEM -> where.add("system_purchased_at IS NULL");
+            case SYSTEM -> where.add("system_purchased_at IS NOT NULL");
+            case ANY -> {}
+        }
+        switch (quiz) {
+            case FINISHED -> where.add("quiz_finished_at IS NOT NULL");
+            case NOT_FINISHED -> where.add("quiz_finished_at IS NULL");
+            case ANY -> {}
+        }
+        // активность — по last_seen_at (апдейты от пользователя, с точностью до часа)
+        if (activeDays != null) where.add("last_seen_at >= ?");
+        return String.join(" AND ", where);
+    }
+
+    // параметры условий начиная с index; возвращает следующий свободный индекс
+    int bind(PreparedStatement ps, int index, long nowMs) throws Exception {
+        if (lastResult != null) ps.setString(index++, lastResult.name());
+        if (activeDays != null) ps.setLong(index++, nowMs - activeDays * 86_400_000L);
+        return index;
+    }
+
+    public String describe() {
+        if (isAll()) return "все пользователи";
+        List<String> parts = new ArrayList<>();
+        if (lastResult != null) parts.add("результат " + lastResult.name());
+        if (purchase != Purchase.ANY) parts.add("покупки: " + purchase.title);
+        if (quiz != Quiz.ANY) parts.add("тест " + quiz.title);
+        if (activeDays != null) parts.add("активны за " + activeDays + " дн.");
+        return String.join(", ", parts);
+    }
+}
@@ -0,0 +1,41 @@
+package ru.maximalexeev.bot.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.Map;
+
+// Долгоживущее соединение пула с кешем подготовленных выражений.
+// Соединением в каждый момент владеет один поток (пул/лок писателя), поэтому кеш без синхронизации.
+// Выражения из prepare() не закрываем — они живут вместе с соединением.
+public class SqlConn {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    SqlConn(Connection connection) {
+        this.connection = connection;
+    }
+
+    public PreparedStatement prepare(String sql) throws Exception {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        } else {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    void close() {
+        for (PreparedStatement ps : statements.values()) {
+            try { ps.close(); } catch (Exception ignored) {}
+        }
+        statements.clear();
+        try { connection.close(); } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,190 @@
+package ru.maximalexeev.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Единственный поток, который пишет в SQLite.
+// Команды копятся в очереди и коммитятся группой: одна транзакция (и один fsync) на
+// groupMax команд или на окно groupWindowMs — что наступит раньше.
+// Каждая команда выполняется в своем SAVEPOINT, поэтому ошибка одной не откатывает соседей.
+// Future команды завершается только после COMMIT группы.
+// "Исключительные" команды (миграции, обслуживание) выполняются отдельно от групп и сами управляют транзакциями.
+public class SqliteWriter implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(SqliteWriter.class);
+
+    public record Stats(long commands, long groups, long failed, int queued) {}
+
+    private record Command<T>(Database.SqlFunction<T> work, CompletableFuture<T> future, boolean exclusive) {}
+
+    private final SqlConn conn;
+    private final int groupMax;
+    private final long groupWindowNanos;
+    private final BlockingQueue<Command<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    // исключительная команда, вынутая из очереди при сборе группы — выполняется следующей
+    private Command<?> pending;
+
+    SqliteWriter(SqlConn conn, int groupMax, long groupWindowMs) {
+        this.conn = conn;
+        this.groupMax = Math.max(1, groupMax);
+        this.groupWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, groupWindowMs));
+        this.thread = new Thread(this, "sqlite-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    <T> CompletableFuture<T> submit(Database.SqlFunction<T> work) {
+        return enqueue(work, false);
+    }
+
+    <T> CompletableFuture<T> submitExclusive(Database.SqlFunction<T> work) {
+        return enqueue(work, true);
+    }
+
+    private <T> CompletableFuture<T> enqueue(Database.SqlFunction<T> work, boolean exclusive) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        if (!running) {
+            f.completeExceptionally(new IllegalStateException("sqlite writer is stopped"));
+            return f;
+        }
+        queue.add(new Command<>(work, f, exclusive));
+        return f;
+    }
+
+    boolean isWriterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    Stats stats() {
+        return new Stats(commands.get(), groups.get(), failed.get(), queue.size());
+    }
+
+    void shutdown(long timeoutMs) {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Command<?>> group = new ArrayList<>(groupMax);
+        while (running || pending != null || !queue.isEmpty()) {
+            try {
+                Command<?> first = pending != null ? pending : queue.poll(1, TimeUnit.SECONDS);
+                pending = null;
+                if (first == null) continue;
+                if (first.exclusive()) {
+                    runExclusive(first);
+                    continue;
+                }
+                group.add(first);
+
+                long deadline = System.nanoTime() + groupWindowNanos;
+                while (group.size() < groupMax) {
+                    long left = deadline - System.nanoTime();
+                    Command<?> next = (left > 0 && running) ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    if (next.exclusive()) {
+                        pending = next;
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // при shutdown дописываем то, что уже в очереди (исключительные — в следующем круге)
+                while (group.size() < groupMax && pending == null) {
+                    Command<?> next = queue.poll();
+                    if (next == null) break;
+                    if (next.exclusive()) pending = next;
+                    else group.add(next);
+                }
+            }
+
+            if (!group.isEmpty()) {
+                commitGroup(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void runExclusive(Command<?> cmd) {
+        Object result;
+        try {
+            result = cmd.work().apply(conn);
+        } catch (Throwable t) {
+            commands.incrementAndGet();
+            failed.incrementAndGet();
+            cmd.future().completeExceptionally(t);
+            return;
+        }
+        commands.incrementAndGet();
+        complete(cmd, result);
+    }
+
+    private void commitGroup(List<Command<?>> group) {
+        Connection c = conn.connection();
+        Object[] results = new Object[group.size()];
+        Throwable[] errors = new Throwable[group.size()];
+
+        try (Statement s = c.createStatement()) {
+            c.setAutoCommit(false);
+            for (int i = 0; i < group.size(); i++) {
+                s.execute("SAVEPOINT cmd");
+                try {
+                    results[i] = group.get(i).work().apply(conn);
+                    s.execute("RELEASE cmd");
+                } catch (Throwable t) {
+                    errors[i] = t;
+                    s.execute("ROLLBACK TO cmd");
+                    s.execute("RELEASE cmd");
+                }
+            }
+            c.commit();
+        } catch (Throwable t) {
+            log.error("SQLite group commit failed ({} commands): {}", group.size(), t.toString(), t);
+            try { c.rollback(); } catch (Exception ignored) {}
+            for (int i = 0; i < group.size(); i++) {
+                if (errors[i] == null) errors[i] = t;
+            }
+        } finally {
+            try { c.setAutoCommit(true); } catch (Exception ignored) {}
+        }
+
+        groups.incrementAndGet();
+        commands.addAndGet(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            if (errors[i] != null) {
+                failed.incrementAndGet();
+                group.get(i).future().completeExceptionally(errors[i]);
+            } else {
+                complete(group.get(i), results[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(Command<T> cmd, Object result) {
+        cmd.future().complete((T) result);
+    }
+}
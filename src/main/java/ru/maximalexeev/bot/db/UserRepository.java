@@ -1,18 +1,39 @@
 package ru.maximalexeev.bot.db;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.objects.User;
+import ru.maximalexeev.bot.db.models.PaymentStatus;
 import ru.maximalexeev.bot.db.models.QuizResult;
 import ru.maximalexeev.bot.db.models.UserState;
+import ru.maximalexeev.bot.util.LongObjectCache;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UserRepository {
+    private static final Logger log = LoggerFactory.getLogger(UserRepository.class);
+
+    // last_seen_at двигаем не чаще раза в час: сегменту "активны за N дней" точнее не нужно
+    private static final long LAST_SEEN_STEP_MS = 60 * 60_000L;
+
     private final Database db;
 
+    // кеш строк users по chat_id: read-through на чтении, write-through из потока писателя
+    private final LongObjectCache<UserRow> cache;
+
+    // профиль Telegram пишем, только если он отличается от строки в кеше — не на каждый клик
+    private final AtomicLong profileWrites = new AtomicLong();
+    private final AtomicLong profileWritesSkipped = new AtomicLong();
+
+    public record ProfileWriteStats(long written, long skipped) {}
+
     public record UserRow(
             long chatId,
             long userId,
@@ -35,366 +56,441 @@ public class UserRepository {
             Long followupAudio24hSentAt,
             Long followupSystem24hSentAt,
 
-            Long systemInvoice5mSentAt
-    ) {}
+            Long systemInvoice5mSentAt,
 
-    public record Candidate(long chatId, long ts) {}
+            Long blockedAt,
+
+            Long lastSeenAt
+    ) {}
 
-    public UserRepository(Database db) {
+    // mark*Now пишутся асинхронно через групповой коммит; кому нужна надежность — ждет future
+    public UserRepository(Database db, int cacheSize) {
         this.db = db;
+        this.cache = new LongObjectCache<>(cacheSize);
     }
 
+    // UPSERT профиля только если строки еще нет или профиль в Telegram поменялся.
+    // Заблокировавший бота снова пишет — запись профиля снимет blocked_at, поэтому не пропускаем.
+    // Заодно last_seen_at: не чаще раза в LAST_SEEN_STEP_MS на пользователя (по строке из кеша), асинхронно.
     public UserRow upsertUser(long chatId, User tgUser) throws Exception {
-        long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection()) {
-            try (PreparedStatement ps = c.prepareStatement("""
-                INSERT INTO users (chat_id, user_id, username, first_name, last_name, state, question_index, score, last_result, receipt_contact,
-                                   upsell_sent_at, quiz_finished_at, audio_purchased_at, system_purchased_at, system_offer_5m_sent_at, followup_audio_24h_sent_at, followup_system_24h_sent_at,
-                                   system_invoice_5m_sent_at,
-                                   created_at, updated_at)
-                VALUES (?, ?, ?, ?, ?, ?, 0, 0, NULL, NULL,
-                        NULL, NULL, NULL, NULL, NULL, NULL, NULL,
-                        NULL,
-                        ?, ?)
-                ON CONFLICT(chat_id) DO UPDATE SET
-                  user_id=excluded.user_id,
-                  username=excluded.username,
-                  first_name=excluded.first_name,
-                  last_name=excluded.last_name,
-                  updated_at=excluded.updated_at
-                """)) {
-                ps.setLong(1, chatId);
-                ps.setLong(2, tgUser.getId());
-                ps.setString(3, tgUser.getUserName());
-                ps.setString(4, tgUser.getFirstName());
-                ps.setString(5, tgUser.getLastName());
-                ps.setString(6, UserState.IDLE.name());
-                ps.setLong(7, now);
-                ps.setLong(8, now);
-                ps.executeUpdate();
-            }
+        UserRow row = get(chatId);
+        if (row != null && row.blockedAt() == null && sameProfile(row, tgUser)) {
+            profileWritesSkipped.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (row.lastSeenAt() == null || now - row.lastSeenAt() >= LAST_SEEN_STEP_MS) touchLastSeen(chatId, now);
+            return row;
         }
-        return get(chatId);
+
+        row = writeProfile(chatId, tgUser);
+        profileWrites.incrementAndGet();
+        return row;
     }
 
-    public UserRow get(long chatId) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT * FROM users WHERE chat_id=?")) {
+    public ProfileWriteStats profileWriteStats() {
+        return new ProfileWriteStats(profileWrites.get(), profileWritesSkipped.get());
+    }
+
+    private void touchLastSeen(long chatId, long now) {
+        mutateAsync(chatId, c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET last_seen_at=? WHERE chat_id=?");
+            ps.setLong(1, now);
+            ps.setLong(2, chatId);
+            return ps.executeUpdate();
+        }).whenComplete((row, e) -> {
+            if (e != null) log.warn("last_seen_at update failed for {}: {}", chatId, e.toString());
+        });
+    }
+
+    private UserRow writeProfile(long chatId, User tgUser) throws Exception {
+        long now = System.currentTimeMillis();
+        return mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("""
+                    INSERT INTO users (chat_id, user_id, username, first_name, last_name, state, question_index, score, last_result, receipt_contact,
+                                       upsell_sent_at, quiz_finished_at, audio_purchased_at, system_purchased_at, system_offer_5m_sent_at, followup_audio_24h_sent_at, followup_system_24h_sent_at,
+                                       system_invoice_5m_sent_at,
+                                       created_at, updated_at, last_seen_at)
+                    VALUES (?, ?, ?, ?, ?, ?, 0, 0, NULL, NULL,
+                            NULL, NULL, NULL, NULL, NULL, NULL, NULL,
+                            NULL,
+                            ?, ?, ?)
+                    ON CONFLICT(chat_id) DO UPDATE SET
+                      user_id=excluded.user_id,
+                      username=excluded.username,
+                      first_name=excluded.first_name,
+                      last_name=excluded.last_name,
+                      blocked_at=NULL,
+                      updated_at=excluded.updated_at,
+                      last_seen_at=excluded.last_seen_at
+                    """);
             ps.setLong(1, chatId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.next()) return null;
-                return map(rs);
-            }
-        }
+            ps.setLong(2, tgUser.getId());
+            ps.setString(3, tgUser.getUserName());
+            ps.setString(4, tgUser.getFirstName());
+            ps.setString(5, tgUser.getLastName());
+            ps.setString(6, UserState.IDLE.name());
+            ps.setLong(7, now);
+            ps.setLong(8, now);
+            ps.setLong(9, now);
+            return ps.executeUpdate();
+        });
+    }
+
+    // Сначала кеш; промах — чтение из БД и кладем в кеш, если писатель не успел положить свежее.
+    public UserRow get(long chatId) throws Exception {
+        UserRow cached = cache.get(chatId);
+        if (cached != null) return cached;
+
+        UserRow row = db.read(c -> load(c, chatId));
+        cache.putIfAbsent(chatId, row);
+        return row;
     }
 
-    public void resetForStart(long chatId) throws Exception {
+    public LongObjectCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    // quizRules — правила кампаний от завершения теста: результата больше нет, поэтому их состояние
+    // сбрасывается той же командой (запланированное гаснет, следующее завершение теста планирует заново)
+    public void resetForStart(long chatId, List<String> quizRules) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET state=?, question_index=0, score=0, last_result=NULL, receipt_contact=NULL,
-                     upsell_sent_at=NULL, quiz_finished_at=NULL,
-                     followup_audio_24h_sent_at=NULL,
-                     updated_at=?
-                 WHERE chat_id=?
-                 """)) {
+        mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE users
+                    SET state=?, question_index=0, score=0, last_result=NULL, receipt_contact=NULL,
+                        upsell_sent_at=NULL, quiz_finished_at=NULL,
+                        updated_at=?
+                    WHERE chat_id=?
+                    """);
             ps.setString(1, UserState.IDLE.name());
             ps.setLong(2, now);
             ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+            int n = ps.executeUpdate();
+            CampaignStateRepository.reset(c, chatId, quizRules);
+            return n;
+        });
     }
 
-    public void startQuiz(long chatId) throws Exception {
+    public void startQuiz(long chatId, List<String> quizRules) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET state=?, question_index=1, score=0, last_result=NULL,
-                     quiz_finished_at=NULL,
-                     upsell_sent_at=NULL,
-                     followup_audio_24h_sent_at=NULL,
-                     updated_at=?
-                 WHERE chat_id=?
-                 """)) {
+        mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE users
+                    SET state=?, question_index=1, score=0, last_result=NULL,
+                        quiz_finished_at=NULL,
+                        upsell_sent_at=NULL,
+                        updated_at=?
+                    WHERE chat_id=?
+                    """);
             ps.setString(1, UserState.IN_TEST.name());
             ps.setLong(2, now);
             ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+            int n = ps.executeUpdate();
+            CampaignStateRepository.reset(c, chatId, quizRules);
+            return n;
+        });
     }
 
     public void setState(long chatId, UserState state) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE users SET state=?, updated_at=? WHERE chat_id=?")) {
+        mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET state=?, updated_at=? WHERE chat_id=?");
             ps.setString(1, state.name());
             ps.setLong(2, now);
             ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
-    }
-
-    public void setReceiptContact(long chatId, String contact) throws Exception {
-        long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE users SET receipt_contact=?, updated_at=? WHERE chat_id=?")) {
-            ps.setString(1, contact);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
     }
 
     public void updateQuizProgress(long chatId, int nextQuestionIndex, int newScore) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET question_index=?, score=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
+        mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE users
+                    SET question_index=?, score=?, updated_at=?
+                    WHERE chat_id=?
+                    """);
             ps.setInt(1, nextQuestionIndex);
             ps.setInt(2, newScore);
             ps.setLong(3, now);
             ps.setLong(4, chatId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
     }
 
     public void finishQuiz(long chatId, QuizResult result, int finalScore) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET state=?, question_index=0, score=?, last_result=?, quiz_finished_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
+        mutate(chatId, c -> {
+            PreparedStatement ps = c.prepare("""
+                    UPDATE users
+                    SET state=?, question_index=0, score=?, last_result=?, quiz_finished_at=?, updated_at=?
+                    WHERE chat_id=?
+                    """);
             ps.setString(1, UserState.IDLE.name());
             ps.setInt(2, finalScore);
             ps.setString(3, result.name());
             ps.setLong(4, now);
             ps.setLong(5, now);
             ps.setLong(6, chatId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
     }
 
-    public void markUpsellSentNow(long chatId) throws Exception {
+    public CompletableFuture<UserRow> markUpsellSentNow(long chatId) {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE users SET upsell_sent_at=?, updated_at=? WHERE chat_id=?")) {
+        return mutateAsync(chatId, c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET upsell_sent_at=?, updated_at=? WHERE chat_id=?");
             ps.setLong(1, now);
             ps.setLong(2, now);
             ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
     }
 
-    public void markAudioPurchasedNow(long chatId) throws Exception {
-        long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET audio_purchased_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+    // Оплата: переход платежа (PaymentRepository.paid) и отметки пользователя — одна команда писателя,
+    // один коммит. false — переход не прошел (повтор successful_payment, уже выдан, платежа нет): ничего не пишем.
+
+    // выдача аудио по платежу ставится в deliveries той же командой
+    public boolean markAudioPaid(long chatId, Database.SqlFunction<Boolean> payment, String receiptContact, String deliveryPaymentId) throws Exception {
+        return markPaid(chatId, payment, receiptContact, "audio_purchased_at",
+                c -> DeliveryRepository.insert(c, deliveryPaymentId, chatId));
     }
 
-    public void markSystemPurchasedNow(long chatId) throws Exception {
-        long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET system_purchased_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+    // delivery — сообщение о доступе, ставится в outbox той же командой
+    public boolean markSystemPaid(long chatId, Database.SqlFunction<Boolean> payment, String receiptContact, OutboxRepository.Message delivery) throws Exception {
+        return markPaid(chatId, payment, receiptContact, "system_purchased_at",
+                c -> OutboxRepository.insert(c, List.of(delivery)));
+    }
+
+    // платеж неизвестного продукта: только статус и контакт для чека
+    public boolean markPaid(long chatId, Database.SqlFunction<Boolean> payment, String receiptContact) throws Exception {
+        return markPaid(chatId, payment, receiptContact, null, c -> 0);
     }
 
-    public void markSystemOffer5mSentNow(long chatId) throws Exception {
+    // Выдано (PaymentRepository.delivered, DeliveryRepository.completed) — пользователь, ждавший оплату,
+    // возвращается в IDLE той же командой; начатый за это время тест не трогаем.
+    public boolean markPaymentDelivered(long chatId, Database.SqlFunction<Boolean> payment) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET system_offer_5m_sent_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
+        return transition(chatId, payment, c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET state=?, updated_at=? WHERE chat_id=? AND state=?");
+            ps.setString(1, UserState.IDLE.name());
             ps.setLong(2, now);
             ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+            ps.setString(4, UserState.PAYMENT_PENDING.name());
+            return ps.executeUpdate();
+        });
     }
 
-    public void markFollowupAudio24hSentNow(long chatId) throws Exception {
+    private boolean markPaid(long chatId, Database.SqlFunction<Boolean> payment, String receiptContact,
+                             String purchasedColumn, Database.SqlFunction<Integer> enqueue) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET followup_audio_24h_sent_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
+        return transition(chatId, payment, c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET receipt_contact=COALESCE(?, receipt_contact), "
+                    + (purchasedColumn == null ? "" : purchasedColumn + "=?, ")
+                    + "updated_at=? WHERE chat_id=?");
+            int i = 1;
+            ps.setString(i++, receiptContact);
+            if (purchasedColumn != null) ps.setLong(i++, now);
+            ps.setLong(i++, now);
+            ps.setLong(i, chatId);
+            int n = ps.executeUpdate();
+            enqueue.apply(c);
+            return n;
+        });
+    }
+
+    // переход платежа, и только если он прошел — изменения пользователя и кеш, все в одной команде писателя
+    private boolean transition(long chatId, Database.SqlFunction<Boolean> payment, Database.SqlFunction<Integer> update) throws Exception {
+        try {
+            return db.write(c -> {
+                if (!payment.apply(c)) return false;
+                applyAndCache(c, chatId, update);
+                return true;
+            });
+        } catch (Exception e) {
+            cache.remove(chatId);
+            throw e;
         }
     }
 
-    public void markFollowupSystem24hSentNow(long chatId) throws Exception {
+    // Массовая сверка покупок: проставляет audio/system_purchased_at всем, у кого есть успешная оплата
+    // с соответствующим префиксом payload, но отметки нет. Диапазон по payment_id вместо LIKE — идет по индексу.
+    public int reconcilePurchases(String audioPayloadPrefix, String systemPayloadPrefix) throws Exception {
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET followup_system_24h_sent_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
+        return db.write(c -> reconcile(c, "audio_purchased_at", audioPayloadPrefix, now)
+                + reconcile(c, "system_purchased_at", systemPayloadPrefix, now));
+    }
+
+    private int reconcile(SqlConn c, String column, String prefix, long now) throws Exception {
+        PreparedStatement ps = c.prepare("""
+                UPDATE users
+                SET %1$s = (
+                      SELECT MIN(p.updated_at) FROM payments p
+                      WHERE p.status = ? AND p.payment_id >= ? AND p.payment_id < ? AND p.chat_id = users.chat_id
+                    ),
+                    updated_at = ?
+                WHERE %1$s IS NULL
+                  AND chat_id IN (
+                      SELECT p.chat_id FROM payments p
+                      WHERE p.status = ? AND p.payment_id >= ? AND p.payment_id < ?
+                  )
+                RETURNING chat_id
+                """.formatted(column));
+        String upper = prefixUpperBound(prefix);
+        ps.setString(1, PaymentStatus.SUCCEEDED.name());
+        ps.setString(2, prefix);
+        ps.setString(3, upper);
+        ps.setLong(4, now);
+        ps.setString(5, PaymentStatus.SUCCEEDED.name());
+        ps.setString(6, prefix);
+        ps.setString(7, upper);
+        int n = 0;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                cache.remove(rs.getLong(1));
+                n++;
+            }
         }
+        return n;
+    }
+
+    // наименьшая строка, большая всех строк с данным префиксом ("audio_guide:" -> "audio_guide;")
+    private static String prefixUpperBound(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
     }
 
-    // ---- новое: отметка, что авто-инвойс (через 5 минут после оффера) уже отправлен / отключен
-    public void markSystemInvoice5mSentNow(long chatId) throws Exception {
+    public long countUsers() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT COUNT(*) AS c FROM users");
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong("c") : 0L;
+            }
+        });
+    }
+
+    // Чаты, куда Bot API ответил 403 / "chat not found": исключаются из сегментов и кампаний,
+    // пока пользователь снова не напишет боту (upsertUser). Вся пачка — одной командой писателя.
+    public CompletableFuture<Integer> markBlocked(long[] chatIds) {
+        if (chatIds.length == 0) return CompletableFuture.completedFuture(0);
         long now = System.currentTimeMillis();
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 UPDATE users
-                 SET system_invoice_5m_sent_at=?, updated_at=?
-                 WHERE chat_id=?
-                 """)) {
-            ps.setLong(1, now);
-            ps.setLong(2, now);
-            ps.setLong(3, chatId);
-            ps.executeUpdate();
-        }
+        return db.writeAsync(c -> {
+            PreparedStatement ps = c.prepare("UPDATE users SET blocked_at=? WHERE chat_id=? AND blocked_at IS NULL");
+            int n = 0;
+            for (long chatId : chatIds) {
+                ps.setLong(1, now);
+                ps.setLong(2, chatId);
+                if (ps.executeUpdate() > 0) {
+                    n++;
+                    cache.put(chatId, load(c, chatId));
+                }
+            }
+            return n;
+        }).whenComplete((n, e) -> {
+            if (e != null) for (long chatId : chatIds) cache.remove(chatId);
+        });
     }
 
-    // ---- кандидаты: 5 минут после отправки оффера (с URL-кнопкой), если НЕ купили систему и авто-инвойс еще не слали
-    public List<Candidate> listSystemInvoice5mCandidates(long cutoffMs) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT chat_id, system_offer_5m_sent_at
-                 FROM users
-                 WHERE system_offer_5m_sent_at IS NOT NULL
-                   AND system_invoice_5m_sent_at IS NULL
-                   AND system_purchased_at IS NULL
-                   AND state = ?
-                   AND system_offer_5m_sent_at <= ?
-                 """)) {
-            ps.setString(1, UserState.IDLE.name());
-            ps.setLong(2, cutoffMs);
-            return readCandidates(ps);
-        }
+    public long countBlocked() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT COUNT(*) FROM users WHERE blocked_at IS NOT NULL");
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
     }
 
-    // ---- кандидаты: 5 минут после аудио, если не купили систему
-    public List<Candidate> listSystemOffer5mCandidates(long cutoffMs) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT chat_id, audio_purchased_at
-                 FROM users
-                 WHERE audio_purchased_at IS NOT NULL
-                   AND system_purchased_at IS NULL
-                   AND system_offer_5m_sent_at IS NULL
-                   AND state = ?
-                   AND audio_purchased_at <= ?
-                 """)) {
-            ps.setString(1, UserState.IDLE.name());
-            ps.setLong(2, cutoffMs);
-            return readCandidates(ps);
-        }
+    public long countFinished() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT COUNT(*) AS c FROM users WHERE last_result IS NOT NULL");
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong("c") : 0L;
+            }
+        });
     }
 
-    // ---- кандидаты: 24 часа после теста, если НЕ купили аудио
-    public List<Candidate> listFollowupAudio24hCandidates(long cutoffMs) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT chat_id, quiz_finished_at
-                 FROM users
-                 WHERE quiz_finished_at IS NOT NULL
-                   AND audio_purchased_at IS NULL
-                   AND followup_audio_24h_sent_at IS NULL
-                   AND state = ?
-                   AND quiz_finished_at <= ?
-                 """)) {
-            ps.setString(1, UserState.IDLE.name());
-            ps.setLong(2, cutoffMs);
-            return readCandidates(ps);
-        }
+    public long[] listAllChatIds() throws Exception {
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT chat_id FROM users");
+            try (ResultSet rs = ps.executeQuery()) {
+                ArrayList<Long> ids = new ArrayList<>();
+                while (rs.next()) ids.add(rs.getLong("chat_id"));
+                long[] arr = new long[ids.size()];
+                for (int i = 0; i < ids.size(); i++) arr[i] = ids.get(i);
+                return arr;
+            }
+        });
     }
 
-    // ---- кандидаты: 24 часа после аудио, если НЕ купили систему
-    public List<Candidate> listFollowupSystem24hCandidates(long cutoffMs) throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("""
-                 SELECT chat_id, audio_purchased_at
-                 FROM users
-                 WHERE audio_purchased_at IS NOT NULL
-                   AND system_purchased_at IS NULL
-                   AND followup_system_24h_sent_at IS NULL
-                   AND state = ?
-                   AND audio_purchased_at <= ?
-                 """)) {
-            ps.setString(1, UserState.IDLE.name());
-            ps.setLong(2, cutoffMs);
-            return readCandidates(ps);
-        }
+    // Страница chat_id сегмента по возрастанию после afterChatId (keyset по первичному ключу, без OFFSET).
+    public long[] listChatIdsAfter(long afterChatId, int limit, Segment segment) throws Exception {
+        long now = System.currentTimeMillis();
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare(
+                    "SELECT chat_id FROM users WHERE chat_id > ? AND " + segment.sql() + " ORDER BY chat_id LIMIT ?");
+            ps.setLong(1, afterChatId);
+            int i = segment.bind(ps, 2, now);
+            ps.setInt(i, limit);
+            long[] page = new long[limit];
+            int n = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) page[n++] = rs.getLong(1);
+            }
+            return n == limit ? page : Arrays.copyOf(page, n);
+        });
     }
 
-    private List<Candidate> readCandidates(PreparedStatement ps) throws Exception {
-        List<Candidate> res = new ArrayList<>();
-        try (ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                long chatId = rs.getLong("chat_id");
-                long ts = rs.getLong(2);
-                res.add(new Candidate(chatId, ts));
+    public long countSegment(Segment segment) throws Exception {
+        long now = System.currentTimeMillis();
+        return db.read(c -> {
+            PreparedStatement ps = c.prepare("SELECT COUNT(*) FROM users WHERE " + segment.sql());
+            segment.bind(ps, 1, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
             }
-        }
-        return res;
+        });
     }
 
-    public long countUsers() throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) AS c FROM users");
-             ResultSet rs = ps.executeQuery()) {
-            return rs.next() ? rs.getLong("c") : 0;
-        }
+    private static boolean sameProfile(UserRow row, User tgUser) {
+        return row.userId() == tgUser.getId()
+                && Objects.equals(row.username(), tgUser.getUserName())
+                && Objects.equals(row.firstName(), tgUser.getFirstName())
+                && Objects.equals(row.lastName(), tgUser.getLastName());
     }
 
-    public long countFinished() throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) AS c FROM users WHERE last_result IS NOT NULL");
-             ResultSet rs = ps.executeQuery()) {
-            return rs.next() ? rs.getLong("c") : 0;
+    private UserRow load(SqlConn c, long chatId) throws Exception {
+        PreparedStatement ps = c.prepare("SELECT * FROM users WHERE chat_id=?");
+        ps.setLong(1, chatId);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) return null;
+            return map(rs);
         }
     }
 
-    public long[] listAllChatIds() throws Exception {
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT chat_id FROM users");
-             ResultSet rs = ps.executeQuery()) {
-            ArrayList<Long> ids = new ArrayList<>();
-            while (rs.next()) ids.add(rs.getLong("chat_id"));
-            long[] arr = new long[ids.size()];
-            for (int i = 0; i < ids.size(); i++) arr[i] = ids.get(i);
-            return arr;
+    // Изменение строки: в той же команде писателя перечитываем ее и кладем в кеш,
+    // так кеш обновляется строго в порядке записей. Если коммит не удался — выкидываем из кеша.
+    private UserRow mutate(long chatId, Database.SqlFunction<Integer> update) throws Exception {
+        try {
+            return db.write(c -> applyAndCache(c, chatId, update));
+        } catch (Exception e) {
+            cache.remove(chatId);
+            throw e;
         }
     }
 
+    private CompletableFuture<UserRow> mutateAsync(long chatId, Database.SqlFunction<Integer> update) {
+        return db.writeAsync(c -> applyAndCache(c, chatId, update))
+                .whenComplete((row, e) -> {
+                    if (e != null) cache.remove(chatId);
+                });
+    }
+
+    private UserRow applyAndCache(SqlConn c, long chatId, Database.SqlFunction<Integer> update) throws Exception {
+        update.apply(c);
+        UserRow row = load(c, chatId);
+        cache.put(chatId, row);
+        return row;
+    }
+
     private UserRow map(ResultSet rs) throws Exception {
         long chatId = rs.getLong("chat_id");
         long userId = rs.getLong("user_id");
@@ -420,12 +516,18 @@ public class UserRepository {
 
         Long systemInvoice5mSentAt = getNullableLong(rs, "system_invoice_5m_sent_at");
 
+        Long blockedAt = getNullableLong(rs, "blocked_at");
+
+        Long lastSeenAt = getNullableLong(rs, "last_seen_at");
+
         return new UserRow(
                 chatId, userId, username, firstName, lastName, state, q, score, lastResult, contact,
                 upsellSentAt, quizFinishedAt,
                 audioPurchasedAt, systemPurchasedAt,
                 systemOffer5mSentAt, followupAudio24hSentAt, followupSystem24hSentAt,
-                systemInvoice5mSentAt
+                systemInvoice5mSentAt,
+                blockedAt,
+                lastSeenAt
         );
     }
 
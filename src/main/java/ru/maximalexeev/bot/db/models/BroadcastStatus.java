@@ -0,0 +1,8 @@
+package ru.maximalexeev.bot.db.models;
+
+public enum BroadcastStatus {
+    RUNNING,
+    PAUSED,
+    CANCELLED,
+    DONE
+}
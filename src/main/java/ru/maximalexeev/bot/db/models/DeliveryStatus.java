@@ -0,0 +1,8 @@
+package ru.maximalexeev.bot.db.models;
+
+public enum DeliveryStatus {
+    PENDING,    // оплачено, выдача еще не начиналась
+    UPLOADING,  // идет (или прервана рестартом) — продолжаем с сохраненного шага
+    DELIVERED,
+    FAILED
+}
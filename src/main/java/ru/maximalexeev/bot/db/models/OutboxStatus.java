@@ -0,0 +1,8 @@
+package ru.maximalexeev.bot.db.models;
+
+public enum OutboxStatus {
+    PENDING,
+    SENT,
+    CANCELLED,  // стало неактуальным к моменту отправки
+    DEAD        // исчерпаны попытки или ошибка, которую повтор не исправит
+}
@@ -0,0 +1,169 @@
+package ru.maximalexeev.bot.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import ru.maximalexeev.bot.db.DeliveryRepository;
+import ru.maximalexeev.bot.db.UserRepository;
+import ru.maximalexeev.bot.db.models.DeliveryStatus;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+// Выдача оплаченного контента вне потока апдейтов: свой пул и свой лимит одновременных выдач.
+// Выдача — последовательность шагов; после каждого подтвержденного шага — checkpoint в deliveries,
+// поэтому после рестарта продолжаем с прерванного шага, а не шлем все заново.
+// Ошибка шага — повтор с паузой (до MAX_ATTEMPTS на выдачу), затем FAILED; недоступный чат и
+// прочие 400 — сразу FAILED. Шаг — только отправка; payments.delivered и состояние пользователя
+// пишутся после последнего шага одной командой. Checkpoint последнего шага (step = числу шагов) пишется
+// до нее, поэтому ее ошибка — и здесь, и после рестарта — повторяет только запись, не отправку.
+public class DeliveryWorker {
+    private static final Logger log = LoggerFactory.getLogger(DeliveryWorker.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MS = 5_000L;
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    public interface Step {
+        void run(long chatId, String paymentId) throws Exception;
+    }
+
+    public interface Listener {
+        // выдача не удалась окончательно
+        void failed(long chatId, String paymentId, Exception error);
+    }
+
+    private final DeliveryRepository deliveries;
+    private final UserRepository users;
+    private final List<Step> steps;
+    private final Listener onFailed;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    public DeliveryWorker(DeliveryRepository deliveries, UserRepository users, List<Step> steps, Listener onFailed,
+                          ExecutorService executor, int concurrency) {
+        this.deliveries = deliveries;
+        this.users = users;
+        this.steps = List.copyOf(steps);
+        this.onFailed = onFailed;
+        this.executor = executor;
+        // в VIRTUAL пул не ограничен — лимит держим сами
+        this.permits = new Semaphore(Math.max(1, concurrency));
+    }
+
+    public void submit(String paymentId) {
+        if (!active.add(paymentId)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                    try {
+                        run(paymentId);
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException e) {
+                    // останов: выдача остается UPLOADING и продолжится после рестарта
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("delivery {} failed: {}", paymentId, e.toString(), e);
+                } finally {
+                    active.remove(paymentId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            active.remove(paymentId);
+        }
+    }
+
+    // после рестарта: все начатые и не начатые выдачи; у отправленных целиком остается только завершение
+    public void resumeAll() throws Exception {
+        for (DeliveryRepository.Delivery d : deliveries.listOpen()) {
+            if (d.step() >= steps.size()) {
+                log.info("delivery {}: all {} steps sent, finishing the completion for chat {}", d.paymentId(), steps.size(), d.chatId());
+            } else {
+                log.info("delivery {}: resuming at step {}/{} for chat {}", d.paymentId(), d.step(), steps.size(), d.chatId());
+            }
+            submit(d.paymentId());
+        }
+    }
+
+    public int activeCount() {
+        return active.size();
+    }
+
+    private void run(String paymentId) throws Exception {
+        DeliveryRepository.Delivery d = deliveries.get(paymentId);
+        if (d == null || d.status() == DeliveryStatus.DELIVERED || d.status() == DeliveryStatus.FAILED) return;
+
+        int step = d.step();
+        int attempts = d.attempts();
+        deliveries.checkpoint(paymentId, step);
+
+        while (step < steps.size()) {
+            try {
+                steps.get(step).run(d.chatId(), paymentId);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                attempts++;
+                boolean last = attempts >= MAX_ATTEMPTS || isPermanent(e);
+                deliveries.failed(paymentId, truncate(e.toString()), last);
+                if (last) {
+                    log.error("delivery {} failed at step {} after {} attempts: {}", paymentId, step, attempts, e.toString());
+                    onFailed.failed(d.chatId(), paymentId, e);
+                    return;
+                }
+                long delay = RETRY_BASE_MS << (attempts - 1);
+                log.warn("delivery {} step {} attempt {} failed, retry in {} s: {}", paymentId, step, attempts, delay / 1000, e.toString());
+                Thread.sleep(delay);
+                continue;
+            }
+            step++;
+            int done = step;
+            retryWrite(paymentId, "checkpoint", () -> deliveries.checkpoint(paymentId, done));
+        }
+
+        // Все шаги подтверждены и отмечены: повторяем только запись. Если она так и не прошла, выдача
+        // остается незавершенной со step = числу шагов, и после рестарта цикл выше пропускается.
+        retryWrite(paymentId, "completion", () -> users.markPaymentDelivered(d.chatId(), deliveries.completed(paymentId, steps.size())));
+        log.info("delivery {} done for chat {}", paymentId, d.chatId());
+    }
+
+    private interface Write {
+        void run() throws Exception;
+    }
+
+    // запись после подтвержденной отправки: ее ошибка повторяется со своим счетчиком, без повторной отправки
+    private void retryWrite(String paymentId, String what, Write write) throws Exception {
+        int attempts = 0;
+        while (true) {
+            try {
+                write.run();
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                attempts++;
+                if (attempts >= MAX_ATTEMPTS) throw e;
+                long delay = RETRY_BASE_MS << (attempts - 1);
+                log.warn("delivery {} {} attempt {} failed, retry in {} s: {}", paymentId, what, attempts, delay / 1000, e.toString());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private static boolean isPermanent(Exception e) {
+        if (!(e instanceof TelegramApiException te)) return false;
+        return OutboundSender.isPermanent(te) || OutboundSender.isChatUnreachable(te);
+    }
+
+    private static String truncate(String s) {
+        return s == null || s.length() <= MAX_ERROR_LENGTH ? s : s.substring(0, MAX_ERROR_LENGTH);
+    }
+}
@@ -0,0 +1,41 @@
+package ru.maximalexeev.bot.dispatch;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// На чем выполняются обработка апдейтов и исходящие вызовы Telegram:
+// PLATFORM — обычные потоки с фиксированными пулами,
+// VIRTUAL  — виртуальные потоки (блокировка на SQLite/HTTP почти ничего не стоит).
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ExecutionMode parse(String raw) {
+        if (raw == null || raw.isBlank()) return PLATFORM;
+        return ExecutionMode.valueOf(raw.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public ThreadFactory threadFactory(String namePrefix) {
+        if (this == VIRTUAL) {
+            return Thread.ofVirtual().name(namePrefix, 0).factory();
+        }
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, namePrefix + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Пул для "много коротких блокирующих задач" (отправки в рассылках и кампаниях).
+    // В VIRTUAL — поток на задачу, в PLATFORM — фиксированный пул.
+    public ExecutorService newTaskExecutor(String namePrefix, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(threadFactory(namePrefix));
+        }
+        return Executors.newFixedThreadPool(Math.max(1, platformThreads), threadFactory(namePrefix));
+    }
+}
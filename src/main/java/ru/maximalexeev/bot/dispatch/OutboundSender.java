@@ -0,0 +1,404 @@
+package ru.maximalexeev.bot.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import ru.maximalexeev.bot.util.LongObjectCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Единая точка исходящих сообщений в Bot API: общий token bucket + bucket на каждый чат.
+// Общая скорость адаптивная (AIMD): на 429 — умножаем на DECREASE, после RECOVERY_QUIET без 429 —
+// каждую секунду прибавляем шаг до потолка maxRate. retry_after из 429 ставит чат на паузу,
+// запрос повторяется (до MAX_ATTEMPTS), так что троттлинг не теряет сообщения.
+// Ожидание — в вызывающем потоке; слоты резервируются заранее, поэтому очередь честная по времени вызова.
+//
+// Вызовы разложены по полосам приоритета (Lane). Запросов в полете не больше connections — столько
+// соединений к api.telegram.org держит HTTP-клиент бота (у telegrambots 6.x это 2 на маршрут), поэтому
+// очередь копится здесь, а не в FIFO пула соединений: свободный слот получает старшая из ждущих полос,
+// а UPLOAD/CAMPAIGN/BROADCAST вместе держат не больше connections - reserved слотов — долгие загрузки
+// файлов и массовые отправки не занимают все соединения. По скорости массовые полосы ограничены еще и
+// долей BULK_SHARE общего лимита, чтобы у интерактивных был запас токенов.
+// Ответы на запросы (pre-checkout, callback) — не сообщения в чат: в лимиты скорости не входят.
+public class OutboundSender {
+    private static final Logger log = LoggerFactory.getLogger(OutboundSender.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final double CHAT_BURST = 3.0;
+    private static final double MIN_RATE = 1.0;
+    private static final double DECREASE = 0.7;
+    private static final long RECOVERY_QUIET_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long INCREASE_EVERY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_TRACKED_CHATS = 100_000;
+    private static final double BULK_SHARE = 0.8;
+    private static final int LATENCY_BUCKETS = 16;
+
+    // порядок = приоритет
+    public enum Lane {
+        PAYMENT,        // ответы в окне оплаты (pre-checkout — 10 секунд)
+        INTERACTIVE,    // реакция на действия пользователя: ответы, правки, выдача купленного по file_id
+        UPLOAD,         // загрузка файла пользователю или в служебный чат (секунды на соединении)
+        CAMPAIGN,       // отложенные сообщения, фоновые загрузки
+        BROADCAST;      // рассылки
+
+        boolean bulk() {
+            return this == CAMPAIGN || this == BROADCAST;
+        }
+
+        // не занимает зарезервированные слоты
+        boolean shared() {
+            return this == UPLOAD || bulk();
+        }
+    }
+
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    public interface Request<T> {
+        T execute() throws TelegramApiException;
+    }
+
+    public record Stats(long sent, long throttled, long failed, long waitedMs, double rate, double maxRate,
+                        int inFlight, int connections, List<LaneStats> lanes) {}
+
+    // время вызова целиком (ожидание лимитов и слота, повторы после 429, сам запрос)
+    public record LaneStats(Lane lane, long calls, long avgMs, long p99Ms, long maxMs) {}
+
+    private static final class Bucket {
+        double tokens;
+        long lastNanos;
+        long pausedUntilNanos;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastNanos = now;
+        }
+
+        // резервирует один слот и возвращает, сколько до него ждать
+        long reserve(double rate, double capacity, long now) {
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * rate / 1e9);
+            lastNanos = now;
+            tokens -= 1;
+            long wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+            return Math.max(wait, pausedUntilNanos - now);
+        }
+    }
+
+    private final double maxRate;
+    private final double chatRate;
+    private final int connections;
+    private final int sharedSlots;
+
+    // общий bucket, bucket массовых полос и адаптивная скорость — под монитором экземпляра
+    private final Bucket global;
+    private final Bucket bulk;
+    private double rate;
+    private long last429Nanos;
+    private long lastIncreaseNanos;
+
+    private final LongObjectCache<Bucket> chats = new LongObjectCache<>(MAX_TRACKED_CHATS);
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    // слоты запросов в полете — под gate (ReentrantLock: ожидание не пиннит виртуальные потоки, в отличие от wait())
+    private final ReentrantLock gate = new ReentrantLock();
+    private final Condition slotFreed = gate.newCondition();
+    private final int[] waiting = new int[Lane.values().length];
+    private int inFlight;
+    private int sharedInFlight;
+
+    private final LaneMetrics[] metrics = new LaneMetrics[Lane.values().length];
+
+    // полоса вызовов без явной полосы на этом потоке (см. inLane)
+    private final ThreadLocal<Lane> currentLane = ThreadLocal.withInitial(() -> Lane.INTERACTIVE);
+
+    public OutboundSender(double maxRate, double chatRate, int connections, int reserved) {
+        if (maxRate <= 0 || chatRate <= 0) throw new IllegalArgumentException("rates must be > 0");
+        if (connections < 1) throw new IllegalArgumentException("connections must be >= 1");
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.chatRate = chatRate;
+        this.connections = connections;
+        // хотя бы один слот загрузкам и массовым полосам оставляем всегда
+        this.sharedSlots = connections - Math.max(0, Math.min(reserved, connections - 1));
+        this.rate = this.maxRate;
+        long now = System.nanoTime();
+        this.global = new Bucket(globalCapacity(rate), now);
+        this.bulk = new Bucket(globalCapacity(rate * BULK_SHARE), now);
+        this.last429Nanos = now - RECOVERY_QUIET_NANOS;
+        this.lastIncreaseNanos = now;
+        for (Lane l : Lane.values()) metrics[l.ordinal()] = new LaneMetrics();
+    }
+
+    // сообщение в чат в полосе текущего потока (по умолчанию INTERACTIVE)
+    public <T> T call(long chatId, Request<T> request) throws TelegramApiException {
+        return call(currentLane.get(), chatId, request);
+    }
+
+    public <T> T call(Lane lane, long chatId, Request<T> request) throws TelegramApiException {
+        long t0 = System.nanoTime();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                waitForRate(lane, chatId);
+                try {
+                    T result = execute(lane, request);
+                    sent.incrementAndGet();
+                    onSuccess();
+                    return result;
+                } catch (TelegramApiRequestException e) {
+                    Integer retryAfter = retryAfterSeconds(e);
+                    if (retryAfter == null) {
+                        failed.incrementAndGet();
+                        throw e;
+                    }
+                    throttled.incrementAndGet();
+                    on429(chatId, retryAfter);
+                    if (attempt >= MAX_ATTEMPTS) {
+                        failed.incrementAndGet();
+                        throw e;
+                    }
+                    log.debug("429 for chat {}, retry_after={}s (attempt {})", chatId, retryAfter, attempt);
+                } catch (TelegramApiException e) {
+                    failed.incrementAndGet();
+                    throw e;
+                }
+            }
+        } finally {
+            metrics[lane.ordinal()].record(System.nanoTime() - t0);
+        }
+    }
+
+    // ответ на запрос пользователя (pre-checkout, callback): без лимитов скорости, но через слоты полос
+    public <T> T answer(Lane lane, Request<T> request) throws TelegramApiException {
+        long t0 = System.nanoTime();
+        try {
+            return execute(lane, request);
+        } finally {
+            metrics[lane.ordinal()].record(System.nanoTime() - t0);
+        }
+    }
+
+    // все вызовы call(chatId, ...) внутри task на этом потоке идут в полосе lane
+    public <T> T inLane(Lane lane, Task<T> task) throws Exception {
+        Lane prev = currentLane.get();
+        currentLane.set(lane);
+        try {
+            return task.run();
+        } finally {
+            currentLane.set(prev);
+        }
+    }
+
+    public synchronized Stats stats() {
+        int busy;
+        gate.lock();
+        try {
+            busy = inFlight;
+        } finally {
+            gate.unlock();
+        }
+        List<LaneStats> lanes = new ArrayList<>();
+        for (Lane l : Lane.values()) lanes.add(metrics[l.ordinal()].snapshot(l));
+        return new Stats(sent.get(), throttled.get(), failed.get(),
+                TimeUnit.NANOSECONDS.toMillis(waitedNanos.get()), rate, maxRate, busy, connections, lanes);
+    }
+
+    // пользователь недоступен: заблокировал бота, удален, чат не найден — повтор не поможет
+    public static boolean isChatUnreachable(TelegramApiException e) {
+        if (!(e instanceof TelegramApiRequestException re) || re.getErrorCode() == null) return false;
+        if (re.getErrorCode() == 403) return true;
+        String description = re.getApiResponse();
+        return re.getErrorCode() == 400 && description != null && description.toLowerCase().contains("chat not found");
+    }
+
+    // запрос отклонен как некорректный (400) — повтор того же запроса не поможет
+    public static boolean isPermanent(TelegramApiException e) {
+        return e instanceof TelegramApiRequestException re && re.getErrorCode() != null && re.getErrorCode() == 400;
+    }
+
+    // Telegram не принял сохраненный file_id (файл удален/устарел на его стороне) — поможет только новая загрузка
+    public static boolean isStaleFileId(TelegramApiException e) {
+        if (!isPermanent(e)) return false;
+        String description = ((TelegramApiRequestException) e).getApiResponse();
+        if (description == null) return false;
+        String d = description.toLowerCase();
+        return d.contains("file identifier") || d.contains("remote file") || d.contains("file reference")
+                || d.contains("file_reference") || d.contains("media_empty");
+    }
+
+    private void waitForRate(Lane lane, long chatId) throws TelegramApiException {
+        long now = System.nanoTime();
+        long wait;
+        Bucket b = chatBucket(chatId, now);
+        synchronized (b) {
+            wait = b.reserve(chatRate, CHAT_BURST, now);
+        }
+        if (lane.bulk()) {
+            // сначала своя доля, и только потом общий bucket: массовые не занимают общие токены впрок
+            synchronized (this) {
+                wait = Math.max(wait, bulk.reserve(rate * BULK_SHARE, globalCapacity(rate * BULK_SHARE), now));
+            }
+            pause(wait);
+            wait = 0;
+            now = System.nanoTime();
+        }
+        synchronized (this) {
+            wait = Math.max(wait, global.reserve(rate, globalCapacity(rate), now));
+        }
+        pause(wait);
+    }
+
+    private <T> T execute(Lane lane, Request<T> request) throws TelegramApiException {
+        acquire(lane);
+        try {
+            return request.execute();
+        } finally {
+            release(lane);
+        }
+    }
+
+    private void acquire(Lane lane) throws TelegramApiException {
+        gate.lock();
+        try {
+            waiting[lane.ordinal()]++;
+            try {
+                while (!canEnter(lane)) slotFreed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TelegramApiException("interrupted while waiting for send slot", e);
+            } finally {
+                waiting[lane.ordinal()]--;
+            }
+            inFlight++;
+            if (lane.shared()) sharedInFlight++;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private boolean canEnter(Lane lane) {
+        if (inFlight >= connections) return false;
+        if (lane.shared() && sharedInFlight >= sharedSlots) return false;
+        for (int i = 0; i < lane.ordinal(); i++) {
+            if (waiting[i] > 0) return false;
+        }
+        return true;
+    }
+
+    private void release(Lane lane) {
+        gate.lock();
+        try {
+            inFlight--;
+            if (lane.shared()) sharedInFlight--;
+            slotFreed.signalAll();
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private Bucket chatBucket(long chatId, long now) {
+        synchronized (chats) {
+            Bucket b = chats.get(chatId);
+            if (b == null) {
+                b = new Bucket(CHAT_BURST, now);
+                chats.put(chatId, b);
+            }
+            return b;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        long now = System.nanoTime();
+        if (rate >= maxRate) return;
+        if (now - last429Nanos < RECOVERY_QUIET_NANOS || now - lastIncreaseNanos < INCREASE_EVERY_NANOS) return;
+        rate = Math.min(maxRate, rate + Math.max(1.0, maxRate * 0.05));
+        lastIncreaseNanos = now;
+    }
+
+    private void on429(long chatId, int retryAfterSec) {
+        long now = System.nanoTime();
+        long until = now + TimeUnit.SECONDS.toNanos(Math.max(1, retryAfterSec));
+        Bucket b = chatBucket(chatId, now);
+        synchronized (b) {
+            b.pausedUntilNanos = Math.max(b.pausedUntilNanos, until);
+        }
+        synchronized (this) {
+            // одно снижение на "волну" 429, а не на каждый из параллельных ответов
+            if (now - last429Nanos > INCREASE_EVERY_NANOS) {
+                double before = rate;
+                rate = Math.max(MIN_RATE, rate * DECREASE);
+                log.info("outbound rate {} -> {} msg/s after 429 (retry_after={}s)",
+                        String.format("%.1f", before), String.format("%.1f", rate), retryAfterSec);
+            }
+            last429Nanos = now;
+            lastIncreaseNanos = now;
+        }
+    }
+
+    private void pause(long nanos) throws TelegramApiException {
+        if (nanos <= 0) return;
+        waitedNanos.addAndGet(nanos);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("interrupted while waiting for send slot", e);
+        }
+    }
+
+    // счетчики полосы: число вызовов, сумма/максимум и гистограмма по степеням двойки миллисекунд
+    private static final class LaneMetrics {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS);
+
+        void record(long nanos) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+            buckets.incrementAndGet(Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms)));
+        }
+
+        LaneStats snapshot(Lane lane) {
+            long n = calls.get();
+            long avg = n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / n);
+            long max = TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+            // p99 — верхняя граница корзины, в которую он попал (не больше максимума)
+            long p99 = 0;
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS && n > 0; i++) {
+                seen += buckets.get(i);
+                if (seen * 100 >= n * 99) {
+                    p99 = Math.min(max, (1L << i) - 1);
+                    break;
+                }
+            }
+            return new LaneStats(lane, n, avg, p99, max);
+        }
+    }
+
+    private static double globalCapacity(double rate) {
+        // небольшой запас на всплеск: четверть секундного лимита
+        return Math.max(1.0, rate / 4);
+    }
+
+    private static Integer retryAfterSeconds(TelegramApiRequestException e) {
+        if (e.getErrorCode() == null || e.getErrorCode() != 429) return null;
+        if (e.getParameters() != null && e.getParameters().getRetryAfter() != null) {
+            return e.getParameters().getRetryAfter();
+        }
+        return 1;
+    }
+}
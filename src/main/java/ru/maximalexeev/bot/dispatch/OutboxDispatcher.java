@@ -0,0 +1,225 @@
+package ru.maximalexeev.bot.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import ru.maximalexeev.bot.db.OutboxRepository;
+import ru.maximalexeev.bot.db.UserRepository;
+import ru.maximalexeev.bot.db.models.OutboxStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Разбор outbox: наступившие сообщения отправляются обработчиком своего kind.
+// Ошибка — повтор с экспоненциальной задержкой (с разбросом), после MAX_ATTEMPTS — DEAD;
+// недоступный чат и прочие 400 — сразу DEAD (повтор не поможет), чат помечается blocked_at.
+// Сообщения одного чата идут по порядку, разные чаты — параллельно. Пока ближайшая попытка
+// не наступила, tick в БД не ходит; wake() — после постановки новых сообщений.
+public class OutboxDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(OutboxDispatcher.class);
+
+    private static final int BATCH = 200;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BACKOFF_BASE_MS = 30_000L;
+    private static final long BACKOFF_MAX_MS = 6L * 60L * 60L * 1000L;
+    private static final long ERROR_RETRY_MS = 10_000L;
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    public interface Handler {
+        // false — сообщение стало неактуальным, не отправляем (CANCELLED)
+        boolean send(long chatId, String ref) throws Exception;
+    }
+
+    public interface Listener {
+        // после того как SENT записан
+        void sent(long chatId, String ref) throws Exception;
+    }
+
+    private record Kind(Handler handler, Listener onSent) {}
+
+    private final OutboxRepository outbox;
+    private final UserRepository users;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final Map<String, Kind> kinds = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextAttemptAt = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dead = new AtomicLong();
+
+    public record Stats(long sent, long retried, long dead) {}
+
+    public OutboxDispatcher(OutboxRepository outbox, UserRepository users, ExecutorService executor, int concurrency) {
+        this.outbox = outbox;
+        this.users = users;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public void register(String kind, Handler handler) {
+        register(kind, handler, (chatId, ref) -> {});
+    }
+
+    public void register(String kind, Handler handler, Listener onSent) {
+        if (kinds.putIfAbsent(kind, new Kind(handler, onSent)) != null) {
+            throw new IllegalArgumentException("duplicate outbox kind " + kind);
+        }
+    }
+
+    public void start() throws Exception {
+        nextAttemptAt.accumulateAndGet(outbox.nextAttemptAt(), Math::min);
+    }
+
+    // в outbox что-то записали — проверить на ближайшем тике
+    public void wake() {
+        nextAttemptAt.set(0);
+    }
+
+    public Stats stats() {
+        return new Stats(sent.get(), retried.get(), dead.get());
+    }
+
+    public void tick(long now) throws Exception {
+        if (now < nextAttemptAt.get()) return;
+
+        nextAttemptAt.set(Long.MAX_VALUE);
+        try {
+            drain(now);
+        } catch (Exception e) {
+            nextAttemptAt.accumulateAndGet(now + ERROR_RETRY_MS, Math::min);
+            throw e;
+        }
+    }
+
+    private void drain(long now) throws Exception {
+        List<OutboxRepository.Entry> due = outbox.listDue(now, BATCH);
+
+        Map<Long, List<OutboxRepository.Entry>> byChat = new LinkedHashMap<>();
+        for (OutboxRepository.Entry e : due) byChat.computeIfAbsent(e.chatId(), k -> new ArrayList<>()).add(e);
+
+        Queue<CompletableFuture<Void>> recorded = new ConcurrentLinkedQueue<>();
+        Queue<OutboxRepository.Entry> delivered = new ConcurrentLinkedQueue<>();
+        Set<Long> unreachable = ConcurrentHashMap.newKeySet();
+
+        // результат пишется сразу после попытки, а не после всей пачки (при ~30 msg/s это секунды):
+        // рестарт посреди пачки повторит только неподтвержденные
+        forEachChat(byChat.values(), entries -> {
+            for (OutboxRepository.Entry e : entries) {
+                OutboxRepository.Result r = attempt(e, unreachable);
+                CompletableFuture<Void> w = outbox.record(r);
+                // future завершается на потоке писателя — там только отмечаем, обработчики ниже
+                if (r.status() == OutboxStatus.SENT) w = w.thenRun(() -> delivered.add(e));
+                recorded.add(w.exceptionally(ex -> {
+                    log.error("outbox {} result write failed: {}", e.idemKey(), ex.toString());
+                    return null;
+                }));
+            }
+        });
+
+        CompletableFuture.allOf(recorded.toArray(new CompletableFuture<?>[0])).join();
+        if (!unreachable.isEmpty()) {
+            users.markBlocked(unreachable.stream().mapToLong(Long::longValue).toArray());
+        }
+        for (OutboxRepository.Entry e : delivered) afterSent(e);
+
+        nextAttemptAt.accumulateAndGet(due.size() == BATCH ? now : outbox.nextAttemptAt(), Math::min);
+    }
+
+    // после того как SENT записан
+    private void afterSent(OutboxRepository.Entry e) {
+        try {
+            kinds.get(e.kind()).onSent().sent(e.chatId(), e.ref());
+        } catch (Exception ex) {
+            log.error("outbox {} after-send failed for {}: {}", e.idemKey(), e.chatId(), ex.toString(), ex);
+        }
+    }
+
+    private OutboxRepository.Result attempt(OutboxRepository.Entry e, Set<Long> unreachable) {
+        Kind kind = kinds.get(e.kind());
+        if (kind == null) return dead(e, "no handler for kind " + e.kind());
+        try {
+            if (!kind.handler().send(e.chatId(), e.ref())) {
+                return new OutboxRepository.Result(e.id(), OutboxStatus.CANCELLED, 0, null);
+            }
+            sent.incrementAndGet();
+            return new OutboxRepository.Result(e.id(), OutboxStatus.SENT, 0, null);
+        } catch (TelegramApiException ex) {
+            if (OutboundSender.isChatUnreachable(ex)) {
+                unreachable.add(e.chatId());
+                return dead(e, ex.toString());
+            }
+            if (OutboundSender.isPermanent(ex)) return dead(e, ex.toString());
+            return retry(e, ex);
+        } catch (Exception ex) {
+            return retry(e, ex);
+        }
+    }
+
+    private OutboxRepository.Result retry(OutboxRepository.Entry e, Exception ex) {
+        int attempts = e.attempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) return dead(e, ex.toString());
+        retried.incrementAndGet();
+        long delay = backoffMs(attempts);
+        log.info("outbox {} attempt {} failed, retry in {} s: {}", e.idemKey(), attempts, delay / 1000, ex.toString());
+        return new OutboxRepository.Result(e.id(), OutboxStatus.PENDING, System.currentTimeMillis() + delay, truncate(ex.toString()));
+    }
+
+    private OutboxRepository.Result dead(OutboxRepository.Entry e, String error) {
+        dead.incrementAndGet();
+        log.warn("outbox {} dead after {} attempts: {}", e.idemKey(), e.attempts() + 1, error);
+        return new OutboxRepository.Result(e.id(), OutboxStatus.DEAD, 0, truncate(error));
+    }
+
+    // 30с, 1м, 2м, ... до 6ч; ±20%, чтобы упавшие одной волной не повторялись одной волной
+    static long backoffMs(int attempts) {
+        long base = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempts - 1, 20));
+        return (long) (base * ThreadLocalRandom.current().nextDouble(0.8, 1.2));
+    }
+
+    private static String truncate(String s) {
+        return s == null || s.length() <= MAX_ERROR_LENGTH ? s : s.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    private interface GroupTask {
+        void run(List<OutboxRepository.Entry> entries);
+    }
+
+    private void forEachChat(Collection<List<OutboxRepository.Entry>> groups, GroupTask task) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(groups.size());
+
+        for (List<OutboxRepository.Entry> entries : groups) {
+            permits.acquire();
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run(entries);
+                    } finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // остаются PENDING — разберем на следующем тике
+                permits.release();
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+}
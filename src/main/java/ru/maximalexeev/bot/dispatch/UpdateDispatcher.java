@@ -0,0 +1,143 @@
+package ru.maximalexeev.bot.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Раскладывает апдейты по "полосам" (lanes) по chat_id.
+// Внутри одной полосы задачи выполняются строго по очереди (порядок ответов в тесте сохраняется),
+// разные полосы работают параллельно.
+public class UpdateDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    public record Stats(
+            int lanes,
+            int busyLanes,
+            int queued,
+            int maxLaneQueue,
+            long submitted,
+            long processed,
+            double utilization
+    ) {}
+
+    private final Lane[] lanes;
+    private final AtomicInteger busyLanes = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final long startedAtNanos = System.nanoTime();
+
+    private volatile boolean running = true;
+
+    public UpdateDispatcher(int laneCount, ThreadFactory threadFactory) {
+        if (laneCount < 1) throw new IllegalArgumentException("laneCount must be >= 1");
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(threadFactory);
+            lanes[i].thread.start();
+        }
+    }
+
+    public void submit(long chatId, Runnable task) {
+        if (!running) return;
+        submitted.incrementAndGet();
+        lanes[laneOf(chatId)].queue.add(task);
+    }
+
+    public int laneOf(long chatId) {
+        // перемешиваем биты, чтобы соседние chat_id не попадали в одну полосу
+        long h = chatId * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) lanes.length);
+    }
+
+    public Stats stats() {
+        int queued = 0;
+        int maxQueue = 0;
+        long busyNanos = 0;
+        for (Lane l : lanes) {
+            int q = l.queue.size();
+            queued += q;
+            maxQueue = Math.max(maxQueue, q);
+            busyNanos += l.busyNanos.get();
+        }
+        long wall = Math.max(1, System.nanoTime() - startedAtNanos) * (long) lanes.length;
+        return new Stats(
+                lanes.length,
+                busyLanes.get(),
+                queued,
+                maxQueue,
+                submitted.get(),
+                processed.get(),
+                (double) busyNanos / wall
+        );
+    }
+
+    public void shutdown(long timeoutMs) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Lane l : lanes) l.thread.interrupt();
+        for (Lane l : lanes) {
+            try {
+                l.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // chat_id, к которому относится апдейт (0 — если определить нельзя).
+    // pre_checkout_query приходит без чата — берем id пользователя (в личке он совпадает с chat_id).
+    public static long chatIdOf(Update u) {
+        if (u.hasMessage()) return u.getMessage().getChatId();
+        if (u.hasCallbackQuery() && u.getCallbackQuery().getMessage() != null) {
+            return u.getCallbackQuery().getMessage().getChatId();
+        }
+        if (u.hasPreCheckoutQuery()) return u.getPreCheckoutQuery().getFrom().getId();
+        if (u.hasEditedMessage()) return u.getEditedMessage().getChatId();
+        if (u.hasMyChatMember()) return u.getMyChatMember().getChat().getId();
+        return 0;
+    }
+
+    private final class Lane implements Runnable {
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        final AtomicLong busyNanos = new AtomicLong();
+        final Thread thread;
+
+        Lane(ThreadFactory threadFactory) {
+            this.thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Runnable task;
+                try {
+                    task = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // при shutdown дочищаем очередь и выходим по условию цикла
+                    continue;
+                }
+                if (task == null) continue;
+
+                busyLanes.incrementAndGet();
+                long t0 = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("Update task failed on {}: {}", thread.getName(), t.toString(), t);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - t0);
+                    busyLanes.decrementAndGet();
+                    processed.incrementAndGet();
+                }
+            }
+        }
+    }
+}
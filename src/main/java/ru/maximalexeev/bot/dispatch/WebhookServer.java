@@ -0,0 +1,111 @@
+package ru.maximalexeev.bot.dispatch;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Встроенный приемник вебхуков Telegram (JDK HttpServer, без внешних зависимостей).
+// Парсит апдейт и сразу отдает его в диспетчер, отвечает 200 не дожидаясь обработки.
+//
+// Локальная проверка:
+//   curl -X POST -H 'Content-Type: application/json' \
+//        -H 'X-Telegram-Bot-Api-Secret-Token: <WEBHOOK_SECRET>' \
+//        --data @update.json http://localhost:8080/telegram/webhook
+public class WebhookServer {
+    private static final Logger log = LoggerFactory.getLogger(WebhookServer.class);
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    public record Stats(long accepted, long rejected, long malformed) {}
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ObjectMapper mapper;
+    private final String path;
+    private final String secret;
+    private final Consumer<Update> sink;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    public WebhookServer(int port, String path, String secret, ExecutorService executor, Consumer<Update> sink) throws IOException {
+        this.path = path;
+        this.secret = (secret == null || secret.isBlank()) ? null : secret;
+        this.sink = sink;
+        this.executor = executor;
+        this.mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 256);
+        this.server.createContext(path, this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        log.info("Webhook server listening on :{}{}", server.getAddress().getPort(), path);
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    public Stats stats() {
+        return new Stats(accepted.get(), rejected.get(), malformed.get());
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod()) || !path.equals(ex.getRequestURI().getPath())) {
+                rejected.incrementAndGet();
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            if (secret != null && !secretMatches(ex.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                rejected.incrementAndGet();
+                ex.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            Update update;
+            try (InputStream in = ex.getRequestBody()) {
+                update = mapper.readValue(in, Update.class);
+            } catch (Exception e) {
+                // битый JSON: отвечаем 400, Telegram такое не присылает — это для локальной отладки
+                malformed.incrementAndGet();
+                log.warn("Webhook: malformed update: {}", e.getMessage());
+                ex.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            accepted.incrementAndGet();
+            ex.sendResponseHeaders(200, -1);
+            sink.accept(update);
+        } catch (Exception e) {
+            log.error("Webhook handling failed: {}", e.toString(), e);
+        }
+    }
+
+    private boolean secretMatches(String provided) {
+        if (provided == null) return false;
+        return MessageDigest.isEqual(
+                provided.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8)
+        );
+    }
+}
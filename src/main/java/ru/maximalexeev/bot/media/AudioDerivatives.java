@@ -0,0 +1,132 @@
+package ru.maximalexeev.bot.media;
+
+import de.sciss.jump3r.lowlevel.LameEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Сжатые копии аудио для выдачи: WAV кодируется в MP3 (jump3r — LAME на чистой Java, без внешних бинарников)
+// и кладется рядом с исходником: MEDIA_DIR/.derived/<sha256 исходника>-<битрейт>k.mp3. Ключ — хэш содержимого,
+// поэтому замененный WAV перекодируется, а после рестарта готовый файл просто переиспользуется.
+// Кодирует один вызов на исходник, остальные ждут его; при ошибке отправляем исходник, а следующий вызов пробует снова.
+// Замененный WAV: копия старого содержимого удаляется.
+public class AudioDerivatives {
+    private static final Logger log = LoggerFactory.getLogger(AudioDerivatives.class);
+
+    private static final String DIR = ".derived";
+
+    private final Path dir;
+    private final int kbps;
+    private final Map<String, CompletableFuture<MediaCatalog.Entry>> derived = new ConcurrentHashMap<>();
+    // имя исходника -> sha256 содержимого, для которого делали копию: по нему находим устаревшую
+    private final Map<String, String> sourceSha = new ConcurrentHashMap<>();
+
+    public AudioDerivatives(Path mediaDir, int kbps) {
+        this.dir = mediaDir.resolve(DIR);
+        this.kbps = kbps;
+    }
+
+    // что отправлять вместо исходника: сам исходник, если сжимать нечего, выключено или не удалось
+    public MediaCatalog.Entry forDelivery(MediaCatalog.Entry source) {
+        if (kbps <= 0 || source.kind() != MediaKind.AUDIO || !isWav(source.name())) return source;
+
+        String prev = sourceSha.put(source.name(), source.sha256());
+        if (prev != null && !prev.equals(source.sha256())) dropStale(prev);
+
+        CompletableFuture<MediaCatalog.Entry> mine = new CompletableFuture<>();
+        CompletableFuture<MediaCatalog.Entry> running = derived.putIfAbsent(source.sha256(), mine);
+        if (running != null) return running.join();
+
+        MediaCatalog.Entry result = source;
+        try {
+            result = derive(source);
+        } catch (Exception e) {
+            log.warn("audio derivative of {} failed, sending the source: {}", source.name(), e.toString());
+            // кешируем только готовые копии: ждущие получат исходник, следующий вызов закодирует заново
+            derived.remove(source.sha256(), mine);
+        } finally {
+            mine.complete(result);
+        }
+        return result;
+    }
+
+    // старое содержимое больше ничему не нужно, если такого же нет под другим именем
+    private void dropStale(String sha) {
+        if (sourceSha.containsValue(sha)) return;
+        derived.remove(sha);
+        try {
+            if (Files.deleteIfExists(outPath(sha))) log.info("audio derivative of replaced {} removed", sha.substring(0, 12));
+        } catch (Exception e) {
+            log.warn("audio derivative {} was not removed: {}", sha.substring(0, 12), e.toString());
+        }
+    }
+
+    private Path outPath(String sha) {
+        return dir.resolve(sha + "-" + kbps + "k.mp3");
+    }
+
+    private MediaCatalog.Entry derive(MediaCatalog.Entry source) throws Exception {
+        Path out = outPath(source.sha256());
+        if (!Files.isRegularFile(out)) {
+            Files.createDirectories(dir);
+            long t0 = System.currentTimeMillis();
+            Path tmp = Files.createTempFile(dir, source.sha256(), ".tmp");
+            try {
+                encode(source.path(), tmp);
+                Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            long size = Files.size(out);
+            log.info("audio derivative: {} {} KB -> {} KB ({}x) in {} ms", source.name(),
+                    source.size() / 1024, size / 1024, String.format("%.1f", (double) source.size() / Math.max(1, size)),
+                    System.currentTimeMillis() - t0);
+        }
+        return new MediaCatalog.Entry(baseName(source.name()) + ".mp3", out, MediaKind.AUDIO,
+                MediaCatalog.sha256(out), Files.size(out), Files.getLastModifiedTime(out).toMillis());
+    }
+
+    // любой PCM WAV (8/16/24/32 бит, float) приводим к 16 бит little-endian — это вход LAME
+    private void encode(Path src, Path dst) throws Exception {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(src.toFile())) {
+            AudioFormat f = in.getFormat();
+            AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, f.getSampleRate(), 16,
+                    f.getChannels(), f.getChannels() * 2, f.getSampleRate(), false);
+            int mode = f.getChannels() == 1 ? LameEncoder.CHANNEL_MODE_MONO : LameEncoder.CHANNEL_MODE_JOINT_STEREO;
+            LameEncoder enc = new LameEncoder(pcm, kbps, mode, LameEncoder.QUALITY_MIDDLE, false);
+            try (AudioInputStream pcmIn = AudioSystem.getAudioInputStream(pcm, in);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(dst))) {
+                byte[] buf = new byte[enc.getPCMBufferSize()];
+                byte[] mp3 = new byte[enc.getMP3BufferSize()];
+                int n;
+                while ((n = pcmIn.readNBytes(buf, 0, buf.length)) > 0) {
+                    out.write(mp3, 0, enc.encodeBuffer(buf, 0, n, mp3));
+                }
+                out.write(mp3, 0, enc.encodeFinish(mp3));
+            } finally {
+                enc.close();
+            }
+        }
+    }
+
+    private static boolean isWav(String name) {
+        return name.toLowerCase(Locale.ROOT).endsWith(".wav");
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+}
@@ -0,0 +1,182 @@
+package ru.maximalexeev.bot.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+
+// Каталог MEDIA_DIR в памяти: имя файла -> путь, тип и SHA-256 содержимого.
+// Ключ media_cache строится от хэша, поэтому замена файла сама делает прежний file_id ненужным.
+// Отправка берет файл из каталога без обращения к диску; WatchService подхватывает изменения
+// (после паузы DEBOUNCE_MS, пока файл дописывается) и сообщает слушателю новые/измененные файлы.
+public class MediaCatalog {
+    private static final Logger log = LoggerFactory.getLogger(MediaCatalog.class);
+
+    private static final long DEBOUNCE_MS = 500;
+
+    public record Entry(String name, Path path, MediaKind kind, String sha256, long size, long modifiedAt) {
+        public String cacheKey() {
+            return kind.key(sha256);
+        }
+    }
+
+    public interface Listener {
+        // файл появился или его содержимое изменилось
+        void changed(Entry entry);
+    }
+
+    private final Path dir;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile WatchService watcher;
+
+    public MediaCatalog(Path dir) {
+        this.dir = dir;
+    }
+
+    // null — файла нет (или это не медиа)
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public List<Entry> entries() {
+        List<Entry> res = new ArrayList<>(entries.values());
+        res.sort((a, b) -> a.name().compareTo(b.name()));
+        return res;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // полный проход по папке; возвращает новые/измененные записи
+    public List<Entry> scan() throws Exception {
+        Set<String> names = new LinkedHashSet<>();
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> s = Files.list(dir)) {
+                s.sorted().forEach(p -> names.add(p.getFileName().toString()));
+            }
+        }
+        entries.keySet().removeIf(name -> !names.contains(name));
+        return refreshAll(names);
+    }
+
+    // Перечитывает один файл: null — не изменился, удален или не медиа.
+    // Размер и mtime не поменялись — хэш не пересчитываем.
+    public Entry refresh(String name) throws Exception {
+        Path p = dir.resolve(name);
+        MediaKind kind = MediaKind.of(p);
+        if (kind == null || !Files.isRegularFile(p)) {
+            if (entries.remove(name) != null) log.info("media catalog: {} removed", name);
+            return null;
+        }
+        long size = Files.size(p);
+        long modifiedAt = Files.getLastModifiedTime(p).toMillis();
+        Entry prev = entries.get(name);
+        if (prev != null && prev.size() == size && prev.modifiedAt() == modifiedAt) return null;
+
+        Entry e = new Entry(name, p, kind, sha256(p), size, modifiedAt);
+        entries.put(name, e);
+        if (prev != null && prev.sha256().equals(e.sha256())) return null;
+        log.info("media catalog: {} {} ({} bytes, sha256 {})", name, prev == null ? "added" : "changed",
+                size, e.sha256().substring(0, 12));
+        return e;
+    }
+
+    public void watch(ThreadFactory threadFactory, Listener listener) throws Exception {
+        if (!Files.isDirectory(dir)) {
+            log.warn("media catalog: {} is not a directory, watching disabled", dir);
+            return;
+        }
+        WatchService ws = FileSystems.getDefault().newWatchService();
+        dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.watcher = ws;
+        threadFactory.newThread(() -> watchLoop(ws, listener)).start();
+    }
+
+    public void close() {
+        WatchService ws = watcher;
+        if (ws == null) return;
+        try {
+            ws.close();
+        } catch (Exception ignored) {}
+    }
+
+    private void watchLoop(WatchService ws, Listener listener) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                // копим события, пока файл дописывается, и обрабатываем каждое имя один раз
+                Set<String> names = new LinkedHashSet<>();
+                boolean overflow = false;
+                do {
+                    for (WatchEvent<?> ev : key.pollEvents()) {
+                        if (ev.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+                        else names.add(((Path) ev.context()).getFileName().toString());
+                    }
+                    if (!key.reset()) {
+                        log.warn("media catalog: watch on {} is no longer valid", dir);
+                        return;
+                    }
+                    Thread.sleep(DEBOUNCE_MS);
+                    key = ws.poll();
+                } while (key != null);
+
+                List<Entry> changed;
+                try {
+                    changed = overflow ? scan() : refreshAll(names);
+                } catch (Exception e) {
+                    log.warn("media catalog rescan failed: {}", e.toString());
+                    continue;
+                }
+                for (Entry e : changed) listener.changed(e);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // остановка
+        } catch (Exception e) {
+            log.error("media catalog watch failed: {}", e.toString(), e);
+        }
+    }
+
+    // ошибка одного файла (удален между событием и чтением, нет прав) не останавливает наблюдение
+    private List<Entry> refreshAll(Set<String> names) {
+        List<Entry> changed = new ArrayList<>();
+        for (String name : names) {
+            try {
+                Entry e = refresh(name);
+                if (e != null) changed.add(e);
+            } catch (Exception ex) {
+                log.warn("media catalog: {} refresh failed: {}", name, ex.toString());
+            }
+        }
+        return changed;
+    }
+
+    static String sha256(Path p) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(p)) {
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+}
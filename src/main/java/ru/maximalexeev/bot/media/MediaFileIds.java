@@ -0,0 +1,171 @@
+package ru.maximalexeev.bot.media;
+
+import ru.maximalexeev.bot.db.MediaCacheRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// file_id медиа: карта в памяти перед media_cache (прочитанный или полученный file_id в SQLite больше не ищем)
+// и single-flight загрузки: пока файл без file_id, загружает ровно один вызывающий, остальные ждут его
+// результат. Иначе пятьдесят одновременных первых отправок дали бы пятьдесят загрузок одного PDF.
+public class MediaFileIds {
+
+    public interface Upload {
+        // загружает файл (например, отправляя его пользователю) и возвращает file_id; null — Telegram его не вернул
+        String run() throws Exception;
+    }
+
+    public interface GroupUpload {
+        // загружает одним запросом (альбом) файлы, для которых known[i] == null, и возвращает file_id
+        // всех файлов группы по тем же индексам; null — Telegram его не вернул
+        String[] run(String[] known) throws Exception;
+    }
+
+    public record Stats(int size, long hits, long loads, long uploads, long waits) {}
+
+    private final MediaCacheRepository repo;
+    private final Map<String, String> fileIds = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong uploadCount = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    public MediaFileIds(MediaCacheRepository repo) {
+        this.repo = repo;
+    }
+
+    // null — файл еще не загружался
+    public String get(String key) throws Exception {
+        String id = fileIds.get(key);
+        if (id != null) {
+            hits.incrementAndGet();
+            return id;
+        }
+        id = repo.getFileId(key);
+        if (id == null || id.isBlank()) return null;
+        loads.incrementAndGet();
+        fileIds.putIfAbsent(key, id);
+        return id;
+    }
+
+    // Готовый file_id или загрузка. Загружает только один из одновременных вызовов; остальные получают
+    // его file_id. Если загрузка ведущего упала (например, его пользователь заблокировал бота),
+    // ожидающие пробуют сами. null — загрузка этого вызова не вернула file_id.
+    public String resolve(String key, Upload upload) throws Exception {
+        while (true) {
+            String id = get(key);
+            if (id != null) return id;
+
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            CompletableFuture<String> running = uploads.putIfAbsent(key, mine);
+            if (running == null) {
+                try {
+                    // могли опубликовать, пока мы становились ведущим
+                    id = get(key);
+                    if (id == null) {
+                        uploadCount.incrementAndGet();
+                        id = upload.run();
+                        if (id != null) put(key, id);
+                    }
+                    mine.complete(id);
+                    return id;
+                } catch (Exception e) {
+                    mine.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    uploads.remove(key, mine);
+                }
+            }
+
+            waits.incrementAndGet();
+            try {
+                id = running.get();
+                if (id != null) return id;
+            } catch (ExecutionException e) {
+                // загрузка ведущего не удалась — следующая итерация
+            }
+        }
+    }
+
+    // resolve для группы файлов, которые загружаются одним запросом. Ведущий занимает все недостающие
+    // ключи разом; если какой-то уже грузит другой вызов (альбом или одиночная загрузка), отпускаем
+    // свои и ждем его. Так на каждый ключ — не больше одной загрузки одновременно.
+    public String[] resolveAll(List<String> keys, GroupUpload upload) throws Exception {
+        while (true) {
+            String[] ids = new String[keys.size()];
+            List<String> missing = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = get(keys.get(i));
+                if (ids[i] == null) missing.add(keys.get(i));
+            }
+            if (missing.isEmpty()) return ids;
+
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            CompletableFuture<String> running = null;
+            List<String> claimed = new ArrayList<>();
+            for (String key : missing) {
+                running = uploads.putIfAbsent(key, mine);
+                if (running != null) break;
+                claimed.add(key);
+            }
+
+            if (running == null) {
+                try {
+                    // могли опубликовать, пока мы становились ведущим
+                    boolean complete = true;
+                    for (int i = 0; i < ids.length; i++) {
+                        if (ids[i] == null) ids[i] = get(keys.get(i));
+                        if (ids[i] == null) complete = false;
+                    }
+                    if (!complete) {
+                        uploadCount.incrementAndGet();
+                        String[] known = ids;
+                        ids = upload.run(known);
+                        for (int i = 0; i < ids.length; i++) {
+                            if (known[i] == null && ids[i] != null) put(keys.get(i), ids[i]);
+                        }
+                    }
+                    // ожидающие одиночные resolve перечитают свой ключ сами
+                    mine.complete(null);
+                    return ids;
+                } catch (Exception e) {
+                    mine.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    for (String key : claimed) uploads.remove(key, mine);
+                }
+            }
+
+            for (String key : claimed) uploads.remove(key, mine);
+            mine.complete(null);
+            waits.incrementAndGet();
+            try {
+                running.get();
+            } catch (ExecutionException e) {
+                // загрузка ведущего не удалась — следующая итерация
+            }
+        }
+    }
+
+    public void put(String key, String fileId) throws Exception {
+        repo.putFileId(key, fileId);
+        fileIds.put(key, fileId);
+    }
+
+    // Telegram отверг file_id: забываем именно его (другой поток мог уже положить свежий)
+    public void invalidate(String key, String staleFileId) throws Exception {
+        fileIds.remove(key, staleFileId);
+        repo.deleteFileId(key, staleFileId);
+    }
+
+    public Stats stats() {
+        return new Stats(fileIds.size(), hits.get(), loads.get(), uploadCount.get(), waits.get());
+    }
+}
@@ -0,0 +1,37 @@
+package ru.maximalexeev.bot.media;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+
+// Тип медиафайла по расширению и его ключ в media_cache по содержимому ("audio:<sha256>", "pdf:<sha256>"):
+// у замененного файла другой ключ, а одинаковые файлы под разными именами делят file_id.
+public enum MediaKind {
+    AUDIO("audio:", Set.of("wav", "mp3", "m4a", "ogg", "flac")),
+    PDF("pdf:", Set.of("pdf"));
+
+    private final String keyPrefix;
+    private final Set<String> extensions;
+
+    MediaKind(String keyPrefix, Set<String> extensions) {
+        this.keyPrefix = keyPrefix;
+        this.extensions = extensions;
+    }
+
+    // contentHash — sha256 содержимого (MediaCatalog.Entry.sha256()), не имя файла
+    public String key(String contentHash) {
+        return keyPrefix + contentHash;
+    }
+
+    // null — не медиа (пропускаем)
+    public static MediaKind of(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) return null;
+        String ext = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (MediaKind k : values()) {
+            if (k.extensions.contains(ext)) return k;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package ru.maximalexeev.bot.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Прогрев media_cache: медиа из каталога без file_id заливаются в служебный чат
+// (не больше concurrency одновременно), file_id пишутся в media_cache по ключу хэша. file_id действует
+// для бота в любом чате, поэтому пользователь потом получает файл без загрузки.
+// При старте — весь каталог, при изменении папки — только новые/измененные файлы.
+public class MediaWarmup {
+    private static final Logger log = LoggerFactory.getLogger(MediaWarmup.class);
+
+    public interface Uploader {
+        // загружает файл и возвращает его file_id (null — Telegram не вернул подходящий)
+        String upload(Path file, MediaKind kind) throws Exception;
+    }
+
+    public record Result(int cached, int uploaded, int failed) {}
+
+    private final MediaCatalog catalog;
+    private final MediaFileIds fileIds;
+    private final Uploader uploader;
+    private final ExecutorService executor;
+    private final int concurrency;
+
+    public MediaWarmup(MediaCatalog catalog, MediaFileIds fileIds, Uploader uploader, ExecutorService executor, int concurrency) {
+        this.catalog = catalog;
+        this.fileIds = fileIds;
+        this.uploader = uploader;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public Result run() throws Exception {
+        return run(catalog.entries());
+    }
+
+    public Result run(List<MediaCatalog.Entry> files) throws Exception {
+        AtomicInteger cached = new AtomicInteger();
+        AtomicInteger uploaded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        Semaphore permits = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(files.size());
+
+        for (MediaCatalog.Entry file : files) {
+            String key = file.cacheKey();
+            if (fileIds.get(key) != null) {
+                cached.incrementAndGet();
+                done.countDown();
+                continue;
+            }
+
+            permits.acquire();
+            try {
+                executor.execute(() -> {
+                    long t0 = System.currentTimeMillis();
+                    try {
+                        // через single-flight: совпавшая по времени отправка пользователю не зальет файл второй раз
+                        String fileId = fileIds.resolve(key, () -> uploader.upload(file.path(), file.kind()));
+                        if (fileId == null) {
+                            failed.incrementAndGet();
+                            log.warn("media warm-up: no file_id for {}", file.name());
+                            return;
+                        }
+                        uploaded.incrementAndGet();
+                        log.info("media warm-up: {} uploaded in {} ms", file.name(), System.currentTimeMillis() - t0);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        log.warn("media warm-up: {} failed: {}", file.name(), e.toString());
+                    } finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                failed.incrementAndGet();
+                done.countDown();
+            }
+        }
+        done.await();
+        return new Result(cached.get(), uploaded.get(), failed.get());
+    }
+}
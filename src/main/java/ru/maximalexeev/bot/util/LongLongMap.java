@@ -0,0 +1,121 @@
+package ru.maximalexeev.bot.util;
+
+// Компактная карта long -> long на открытой адресации (линейное пробирование), без боксинга.
+// Растет удвоением при заполненности > 50%. Потокобезопасна (монитор на экземпляре).
+public class LongLongMap {
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongLongMap(int expectedSize) {
+        int cap = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+        allocate(cap);
+    }
+
+    public synchronized long get(long key, long missing) {
+        int i = find(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    public synchronized boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    public synchronized void put(long key, long value) {
+        int i = find(key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) rehash(keys.length * 2);
+        insert(key, value);
+    }
+
+    public synchronized boolean remove(long key) {
+        int i = find(key);
+        if (i < 0) return false;
+        deleteAt(i);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Удаляет все записи, у которых значение меньше threshold (например, просроченные метки времени).
+    public synchronized int removeValuesBelow(long threshold) {
+        int removed = 0;
+        int i = 0;
+        while (i < keys.length) {
+            if (used[i] && values[i] < threshold) {
+                // после сдвига в слот i мог переехать другой элемент — проверяем его же еще раз
+                deleteAt(i);
+                removed++;
+            } else {
+                i++;
+            }
+        }
+        return removed;
+    }
+
+    private void allocate(int cap) {
+        keys = new long[cap];
+        values = new long[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+        size = 0;
+    }
+
+    private void rehash(int newCap) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(newCap);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) insert(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private void insert(long key, long value) {
+        int i = slot(key);
+        while (used[i]) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        size++;
+    }
+
+    private int find(long key) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void deleteAt(int i) {
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!used[j]) break;
+            int home = slot(keys[j]);
+            boolean movable = (gap <= j) ? (home <= gap || home > j) : (home <= gap && home > j);
+            if (movable) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+        size--;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,149 @@
+package ru.maximalexeev.bot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ограниченный по размеру кеш long -> V на открытой адресации (линейное пробирование),
+// без боксинга ключей. При переполнении вытесняет по алгоритму CLOCK (second chance).
+// Потокобезопасен (монитор на экземпляре).
+public class LongObjectCache<V> {
+
+    public record Stats(int size, int maxSize, long hits, long misses, long evictions) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+    }
+
+    private final int maxSize;
+    private final int mask;
+    private final long[] keys;
+    private final Object[] values;      // null — пустой слот
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LongObjectCache(int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be >= 1");
+        this.maxSize = maxSize;
+        // заполненность таблицы не выше 50%
+        int cap = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+        this.mask = cap - 1;
+        this.keys = new long[cap];
+        this.values = new Object[cap];
+        this.referenced = new boolean[cap];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        int i = find(key);
+        if (i < 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        referenced[i] = true;
+        return (V) values[i];
+    }
+
+    public synchronized void put(long key, V value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        int i = find(key);
+        if (i >= 0) {
+            values[i] = value;
+            referenced[i] = true;
+            return;
+        }
+        insert(key, value);
+    }
+
+    // Кладет значение только если ключа еще нет (для read-through, чтобы не затереть более свежую запись).
+    public synchronized void putIfAbsent(long key, V value) {
+        if (value == null || find(key) >= 0) return;
+        insert(key, value);
+    }
+
+    public synchronized void remove(long key) {
+        int i = find(key);
+        if (i >= 0) deleteAt(i);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i <= mask; i++) {
+            values[i] = null;
+            referenced[i] = false;
+        }
+        size = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(size, maxSize, hits.get(), misses.get(), evictions.get());
+    }
+
+    private void insert(long key, Object value) {
+        if (size >= maxSize) evictOne();
+        int i = slot(key);
+        while (values[i] != null) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+        referenced[i] = false;
+        size++;
+    }
+
+    private void evictOne() {
+        while (true) {
+            int i = hand;
+            hand = (hand + 1) & mask;
+            if (values[i] == null) continue;
+            if (referenced[i]) {
+                referenced[i] = false;
+                continue;
+            }
+            deleteAt(i);
+            evictions.incrementAndGet();
+            return;
+        }
+    }
+
+    private int find(long key) {
+        int i = slot(key);
+        while (values[i] != null) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // удаление со сдвигом назад: цепочки пробирования остаются непрерывными без "надгробий"
+    private void deleteAt(int i) {
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int home = slot(keys[j]);
+            // элемент j можно перенести в gap, если его "домашний" слот не лежит в (gap, j]
+            boolean movable = (gap <= j) ? (home <= gap || home > j) : (home <= gap && home > j);
+            if (movable) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                referenced[gap] = referenced[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        referenced[gap] = false;
+        size--;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}